@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark repository indexing.
+ * <ul>
+ * <li><code>cold</code>: every artifact is read, as when no index cache is available;</li>
+ * <li><code>warm</code>: the whole repository is scanned, with an up-to-date index cache;</li>
+ * <li><code>singleFileChange</code>: a single artifact was updated since the last run.</li>
+ * </ul>
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IndexerBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int repositorySize;
+    @Param("4096")
+    public int payloadSize;
+    @Param("0")
+    public int threads;
+
+    private SyntheticRepository repo;
+    private Path indexFile;
+    private IndexCache warmCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        repo = SyntheticRepository.create(repositorySize, payloadSize);
+        indexFile = Files.createTempDirectory("stamina-repo-bench-index-").resolve("obr.xml");
+        warmCache = new IndexCache();
+        new RepositoryIndexer(threads).indexRepository(repo.getDirectory(), indexFile, "bench", warmCache);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repo.delete();
+        for (final Path p : new Path[]{indexFile, RepositoryIndexer.compressedIndexFile(indexFile),
+                BinaryIndex.binaryIndexFile(indexFile), indexFile.getParent()}) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    @Benchmark
+    public List<RepositoryIndexer.Resource> cold() throws IOException {
+        return new RepositoryIndexer(threads).indexRepository(
+                repo.getDirectory(), indexFile, "bench", new IndexCache());
+    }
+
+    @Benchmark
+    public List<RepositoryIndexer.Resource> warm() throws IOException {
+        return new RepositoryIndexer(threads).indexRepository(
+                repo.getDirectory(), indexFile, "bench", warmCache, null);
+    }
+
+    @Benchmark
+    public List<RepositoryIndexer.Resource> singleFileChange(ChangedArtifact change) throws IOException {
+        return new RepositoryIndexer(threads).indexRepository(
+                repo.getDirectory(), indexFile, "bench", warmCache, Collections.singleton(change.artifact));
+    }
+
+    /**
+     * Artifact updated before each indexing run.
+     */
+    @State(Scope.Benchmark)
+    public static class ChangedArtifact {
+        Path artifact;
+        private int revision;
+
+        @Setup(Level.Invocation)
+        public void update(IndexerBenchmark benchmark) throws IOException {
+            artifact = benchmark.repo.updateBundle(++revision);
+        }
+    }
+}
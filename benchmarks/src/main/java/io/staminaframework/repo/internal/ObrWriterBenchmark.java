@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark writing of repository indexes (XML index and its compressed copy).
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ObrWriterBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int repositorySize;
+
+    private Path indexFile;
+    private List<RepositoryIndexer.Resource> resources;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Payload is not relevant here: keep artifacts small.
+        final SyntheticRepository repo = SyntheticRepository.create(repositorySize, 16);
+        try {
+            resources = new RepositoryIndexer().scanRepository(repo.getDirectory(), new IndexCache(), null);
+        } finally {
+            repo.delete();
+        }
+        indexFile = Files.createTempDirectory("stamina-repo-bench-index-").resolve("obr.xml");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(indexFile);
+        Files.deleteIfExists(RepositoryIndexer.compressedIndexFile(indexFile));
+        Files.deleteIfExists(indexFile.getParent());
+    }
+
+    @Benchmark
+    public Path write() throws IOException {
+        ObrWriter.write(indexFile, "bench", 1, resources);
+        return indexFile;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark requests to a repository servlet, through an embedded HTTP container.
+ * Both throughput and latency distribution are measured.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+public class ServletBenchmark {
+    @Param({"1000"})
+    public int repositorySize;
+    @Param({"65536"})
+    public int payloadSize;
+
+    private SyntheticRepository repo;
+    private Server server;
+    private String baseUrl;
+    private List<String> artifactPaths;
+    private String indexEtag;
+
+    @Setup
+    public void setUp() throws Exception {
+        repo = SyntheticRepository.create(repositorySize, payloadSize);
+        final Path repoDir = repo.getDirectory();
+        final Path indexFile = repoDir.resolve("obr.xml");
+        final List<RepositoryIndexer.Resource> resources =
+                new RepositoryIndexer().indexRepository(repoDir, indexFile, "bench");
+
+        final RepositoryServlet servlet = new RepositoryServlet();
+        final Field logServiceField = RepositoryServlet.class.getDeclaredField("logService");
+        logServiceField.setAccessible(true);
+        logServiceField.set(servlet, Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{LogService.class}, (proxy, method, args) -> null));
+        final Map<String, Object> props = new HashMap<>(4);
+        props.put("repository.id", "bench");
+        props.put("repository.path", repoDir.toString());
+        servlet.activate(props);
+        final IndexSnapshot index = IndexSnapshot.load(indexFile, resources);
+        servlet.commitIndex(index);
+        indexEtag = index.etag;
+
+        server = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(servlet), "/bench/*");
+        server.setHandler(context);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/bench/";
+
+        artifactPaths = new ArrayList<>(resources.size());
+        for (final RepositoryIndexer.Resource rsc : resources) {
+            artifactPaths.add(rsc.url);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+        repo.delete();
+    }
+
+    @Benchmark
+    public long index() throws IOException {
+        return get("obr.xml", "Accept-Encoding", "gzip");
+    }
+
+    @Benchmark
+    public long indexNotModified() throws IOException {
+        return get("obr.xml", "If-None-Match", indexEtag);
+    }
+
+    @Benchmark
+    public long artifact(Client client) throws IOException {
+        return get(client.nextArtifact(this), null, null);
+    }
+
+    @Benchmark
+    public long artifactRange(Client client) throws IOException {
+        return get(client.nextArtifact(this), "Range", "bytes=0-1023");
+    }
+
+    /**
+     * Send a request, and read the whole response.
+     * Connections are kept alive between requests.
+     */
+    private long get(String path, String headerName, String headerValue) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        if (headerName != null) {
+            conn.setRequestProperty(headerName, headerValue);
+        }
+        final int status = conn.getResponseCode();
+        if (status >= 400) {
+            throw new IOException("Unexpected response status " + status + ": " + path);
+        }
+        long size = 0;
+        try (final InputStream in = conn.getInputStream()) {
+            final byte[] buf = new byte[8192];
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                size += bytesRead;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Client state: each thread requests artifacts in a different order.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        private int next = (int) Thread.currentThread().getId() * 7919;
+
+        String nextArtifact(ServletBenchmark benchmark) {
+            next = (next + 1) % benchmark.artifactPaths.size();
+            return benchmark.artifactPaths.get(next);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic repository, holding generated bundles and feature subsystems.
+ * Artifacts are spread over subdirectories, as in a Maven-like layout.
+ * Content is generated from a fixed seed, so that runs are comparable.
+ *
+ * @author Stamina Framework developers
+ */
+final class SyntheticRepository {
+    /**
+     * Number of artifacts in each subdirectory.
+     */
+    private static final int ARTIFACTS_PER_DIRECTORY = 100;
+    /**
+     * One artifact out of this number is a feature subsystem.
+     */
+    private static final int SUBSYSTEM_RATIO = 10;
+
+    private final Path dir;
+    private final List<Path> artifacts;
+    private final int payloadSize;
+    private final Random random = new Random(42);
+
+    private SyntheticRepository(final Path dir, final int payloadSize, final int size) {
+        this.dir = dir;
+        this.payloadSize = payloadSize;
+        this.artifacts = new ArrayList<>(size);
+    }
+
+    /**
+     * Create a synthetic repository in a new temporary directory.
+     *
+     * @param size        number of artifacts
+     * @param payloadSize size of random content added to each artifact, in bytes
+     * @return synthetic repository
+     * @throws IOException if repository could not be created
+     */
+    static SyntheticRepository create(int size, int payloadSize) throws IOException {
+        final SyntheticRepository repo = new SyntheticRepository(
+                Files.createTempDirectory("stamina-repo-bench-"), payloadSize, size);
+        for (int i = 0; i < size; ++i) {
+            final Path subDir = repo.dir.resolve(String.format("group%03d", i / ARTIFACTS_PER_DIRECTORY));
+            Files.createDirectories(subDir);
+            final Path artifact;
+            if (i % SUBSYSTEM_RATIO == SUBSYSTEM_RATIO - 1) {
+                artifact = subDir.resolve("bench.feature" + i + "-1.0.0.esa");
+                repo.writeSubsystem(artifact, i);
+            } else {
+                artifact = subDir.resolve("bench.bundle" + i + "-1.0.0.jar");
+                repo.writeBundle(artifact, i, 0);
+            }
+            repo.artifacts.add(artifact);
+        }
+        return repo;
+    }
+
+    Path getDirectory() {
+        return dir;
+    }
+
+    List<Path> getArtifacts() {
+        return Collections.unmodifiableList(artifacts);
+    }
+
+    /**
+     * Update a bundle, so that its checksum and last modified time are changed.
+     *
+     * @param revision bundle revision (should be different for each call)
+     * @return updated artifact
+     * @throws IOException if artifact could not be written
+     */
+    Path updateBundle(int revision) throws IOException {
+        final Path artifact = artifacts.get(0);
+        final FileTime lastModified = Files.getLastModifiedTime(artifact);
+        writeBundle(artifact, 0, revision);
+        // Make sure the update is detected, even with a coarse file time resolution.
+        Files.setLastModifiedTime(artifact, FileTime.fromMillis(lastModified.toMillis() + 1000));
+        return artifact;
+    }
+
+    /**
+     * Delete repository files.
+     *
+     * @throws IOException if files could not be deleted
+     */
+    void delete() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void writeBundle(Path artifact, int index, int revision) throws IOException {
+        final Manifest man = new Manifest();
+        final Attributes atts = man.getMainAttributes();
+        atts.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        atts.putValue("Bundle-ManifestVersion", "2");
+        atts.putValue("Bundle-SymbolicName", "bench.bundle" + index);
+        atts.putValue("Bundle-Version", "1.0." + revision);
+        atts.putValue("Export-Package", "bench.pkg" + index + ";version=\"1.0.0\";uses:=\"bench.api\"");
+        atts.putValue("Import-Package", "bench.api;version=\"[1.0,2)\""
+                + (index == 0 ? "" : ",bench.pkg" + (index - 1) + ";version=\"[1.0,2)\""));
+        atts.putValue("Provide-Capability", "bench.service;name=service" + index);
+        atts.putValue("Require-Capability", "osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.8))\"");
+
+        try (final OutputStream out = Files.newOutputStream(artifact);
+             final JarOutputStream jar = new JarOutputStream(out, man)) {
+            writePayload(jar, "bench/pkg" + index + "/Payload.class");
+        }
+    }
+
+    private void writeSubsystem(Path artifact, int index) throws IOException {
+        final Manifest man = new Manifest();
+        final Attributes atts = man.getMainAttributes();
+        atts.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        atts.putValue("Subsystem-ManifestVersion", "1");
+        atts.putValue("Subsystem-SymbolicName", "bench.feature" + index);
+        atts.putValue("Subsystem-Version", "1.0.0");
+        atts.putValue("Subsystem-Type", "osgi.subsystem.feature");
+
+        try (final OutputStream out = Files.newOutputStream(artifact);
+             final ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            man.write(zip);
+            zip.closeEntry();
+            writePayload(zip, "bench.bundle" + index + ".jar");
+        }
+    }
+
+    private void writePayload(ZipOutputStream zip, String entryName) throws IOException {
+        // Random content is not compressible: artifact size is close to payload size.
+        final byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        zip.putNextEntry(new ZipEntry(entryName));
+        zip.write(payload);
+        zip.closeEntry();
+    }
+}
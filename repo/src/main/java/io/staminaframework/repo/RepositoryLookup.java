@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo;
+
+import java.util.List;
+
+/**
+ * Look up resources from a repository index, without downloading nor parsing it.
+ * An instance is registered as an OSGi service for each repository (including composite repositories),
+ * with the service property {@link #REPOSITORY_ID} set to the repository identifier.
+ * Lookups are made against the index currently visible to clients.
+ *
+ * @author Stamina Framework developers
+ */
+public interface RepositoryLookup {
+    /**
+     * Service property holding the repository identifier.
+     */
+    String REPOSITORY_ID = "repository.id";
+
+    /**
+     * Get the repository identifier.
+     *
+     * @return repository identifier
+     */
+    String getRepositoryId();
+
+    /**
+     * Find resources by symbolic name and version.
+     *
+     * @param symbolicName resource symbolic name
+     * @param versionRange OSGi version range (such as <code>[1.0,2.0)</code>),
+     *                     or <code>null</code> to match any version
+     * @return matching resources, sorted by version (an empty list is returned if no resource matches,
+     * or if the repository index is not available yet)
+     * @throws IllegalArgumentException if the version range is invalid
+     */
+    List<RepositoryResource> find(String symbolicName, String versionRange);
+}
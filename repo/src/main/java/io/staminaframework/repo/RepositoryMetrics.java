@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Metrics for a repository, about indexing and serving.
+ * An instance is registered as an OSGi service for each repository,
+ * with the service property {@link #REPOSITORY_ID} set to the repository identifier.
+ * <p>
+ * Values are cumulative since the repository was started, unless stated otherwise.
+ *
+ * @author Stamina Framework developers
+ */
+public interface RepositoryMetrics {
+    /**
+     * Service property holding the repository identifier.
+     */
+    String REPOSITORY_ID = "repository.id";
+
+    /**
+     * Get the repository identifier.
+     *
+     * @return repository identifier
+     */
+    String getRepositoryId();
+
+    /**
+     * Get the number of completed indexing runs.
+     *
+     * @return indexing run count
+     */
+    long getIndexRunCount();
+
+    /**
+     * Get the number of failed indexing runs.
+     *
+     * @return indexing failure count
+     */
+    long getIndexFailureCount();
+
+    /**
+     * Get the duration of the last completed indexing run.
+     *
+     * @return duration in milliseconds
+     */
+    long getLastIndexDuration();
+
+    /**
+     * Get the total duration of completed indexing runs.
+     *
+     * @return duration in milliseconds
+     */
+    long getTotalIndexDuration();
+
+    /**
+     * Get the number of artifacts read and hashed while indexing.
+     *
+     * @return artifact count
+     */
+    long getFilesHashed();
+
+    /**
+     * Get the number of bytes read and hashed while indexing.
+     *
+     * @return byte count
+     */
+    long getBytesHashed();
+
+    /**
+     * Get the ratio of artifacts whose metadata was found in the index cache
+     * while indexing, instead of being read again.
+     *
+     * @return cache hit ratio, between 0 and 1
+     */
+    double getIndexCacheHitRatio();
+
+    /**
+     * Get the time spent by the last indexing run waiting for changes to settle,
+     * from the first reported change until indexing started.
+     *
+     * @return delay in milliseconds
+     */
+    long getLastQueueDelay();
+
+    /**
+     * Get the last delay used to schedule indexing after a change was reported.
+     *
+     * @return delay in milliseconds
+     */
+    long getLastDebounceDelay();
+
+    /**
+     * Get the number of bytes read while verifying artifacts in the background.
+     *
+     * @return byte count
+     */
+    long getScrubbedBytes();
+
+    /**
+     * Get the number of completed background verification passes.
+     *
+     * @return pass count
+     */
+    long getScrubPassCount();
+
+    /**
+     * Get the progress of the current background verification pass.
+     *
+     * @return progress, between 0 and 1 (1 if no pass is running)
+     */
+    double getScrubProgress();
+
+    /**
+     * Get artifacts whose content does not match their indexed checksum.
+     * These artifacts are neither indexed nor served, until they are replaced.
+     *
+     * @return paths of quarantined artifacts, relative to the repository directory
+     */
+    Set<String> getQuarantinedArtifacts();
+
+    /**
+     * Get the number of HTTP requests handled by the repository.
+     *
+     * @return request count
+     */
+    long getRequestCount();
+
+    /**
+     * Get the average request rate over the last minute.
+     *
+     * @return requests per second
+     */
+    double getRequestRate();
+
+    /**
+     * Get a request latency percentile.
+     * Values are approximated within about 3%.
+     *
+     * @param percentile percentile, between 0 and 100
+     * @return latency in microseconds
+     */
+    long getRequestLatency(double percentile);
+
+    /**
+     * Get the number of bytes sent to clients (index and artifact content).
+     *
+     * @return byte count
+     */
+    long getBytesServed();
+
+    /**
+     * Get the number of responses sent with a status code.
+     *
+     * @param status HTTP status code (such as 304, 206 or 503)
+     * @return response count
+     */
+    long getResponseCount(int status);
+
+    /**
+     * Get the most downloaded artifacts.
+     *
+     * @param count maximum number of artifacts to return
+     * @return download count by artifact path, most downloaded first
+     */
+    Map<String, Long> getTopArtifacts(int count);
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo;
+
+import org.osgi.framework.Version;
+
+/**
+ * Resource found in a repository index.
+ * Instances are immutable.
+ *
+ * @author Stamina Framework developers
+ */
+public final class RepositoryResource {
+    private final String symbolicName;
+    private final Version version;
+    private final String type;
+    private final String url;
+    private final String checksum;
+    private final long size;
+
+    public RepositoryResource(final String symbolicName, final Version version, final String type,
+                              final String url, final String checksum, final long size) {
+        this.symbolicName = symbolicName;
+        this.version = version;
+        this.type = type;
+        this.url = url;
+        this.checksum = checksum;
+        this.size = size;
+    }
+
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    public Version getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the resource type, as published in the index
+     * (such as <code>osgi.bundle</code>).
+     *
+     * @return resource type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get the resource URL, relative to the repository index location.
+     *
+     * @return resource URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Get the resource SHA-256 checksum.
+     *
+     * @return checksum, as an hexadecimal string
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Get the resource size.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return symbolicName + "/" + version + " (" + url + ")";
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded in-memory cache holding metadata for artifacts served by the repository servlet,
+ * so that serving an artifact does not require any file system lookup.
+ * This cache is filled from the repository index when it is committed,
+ * and entries are invalidated when repository changes are detected.
+ * Entries filled from the index are checked against the file system when first used,
+ * since artifacts may have been changed while the repository was being indexed.
+ *
+ * @author Stamina Framework developers
+ */
+final class ArtifactCache {
+    private final Map<String, ArtifactInfo> entries;
+    private final int maxEntries;
+
+    ArtifactCache(final int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.entries = new ConcurrentHashMap<>(Math.min(this.maxEntries, 1024));
+    }
+
+    /**
+     * Get artifact metadata.
+     *
+     * @param path artifact path, relative to the repository directory (using <code>/</code> as separator)
+     * @return artifact metadata, or <code>null</code> if not found in cache
+     */
+    ArtifactInfo get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Put artifact metadata.
+     * When this cache is full, an arbitrary entry is evicted.
+     *
+     * @param path artifact path, relative to the repository directory (using <code>/</code> as separator)
+     * @param info artifact metadata
+     */
+    void put(String path, ArtifactInfo info) {
+        if (maxEntries == 0) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(path)) {
+            final Iterator<String> i = entries.keySet().iterator();
+            if (i.hasNext()) {
+                i.next();
+                i.remove();
+            }
+        }
+        entries.put(path, info);
+    }
+
+    /**
+     * Drop metadata for a path.
+     *
+     * @param path artifact or directory path, relative to the repository directory
+     *             (using <code>/</code> as separator)
+     */
+    void invalidate(String path) {
+        if (path.length() == 0) {
+            entries.clear();
+            return;
+        }
+        entries.remove(path);
+        final String dirPrefix = path + "/";
+        entries.keySet().removeIf(p -> p.startsWith(dirPrefix));
+    }
+
+    /**
+     * Drop all entries, and fill this cache with metadata from an index.
+     * These entries are not verified (see {@link ArtifactInfo#verified}).
+     *
+     * @param index         repository index
+     * @param repositoryDir repository directory
+     */
+    void reset(IndexSnapshot index, Path repositoryDir) {
+        entries.clear();
+        for (final Map.Entry<String, RepositoryIndexer.Resource> e : index.resources.entrySet()) {
+            if (entries.size() >= maxEntries) {
+                break;
+            }
+            final RepositoryIndexer.Resource rsc = e.getValue();
+            entries.put(e.getKey(), new ArtifactInfo(repositoryDir.resolve(rsc.url),
+                    rsc.fileSize, rsc.lastModified, "\"" + rsc.checksum + "\"", rsc.type.mimeType, false));
+        }
+    }
+
+    /**
+     * Artifact metadata.
+     */
+    static final class ArtifactInfo {
+        final Path file;
+        final long size;
+        final long lastModified;
+        final String etag;
+        final String contentType;
+        /**
+         * <code>true</code> if this metadata was read from the file system,
+         * <code>false</code> if it was read from the repository index.
+         */
+        final boolean verified;
+
+        ArtifactInfo(final Path file, final long size, final long lastModified,
+                     final String etag, final String contentType, final boolean verified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.verified = verified;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background verification of artifact content against indexed checksums,
+ * in order to detect corrupted or tampered artifacts between indexing runs.
+ * <p>
+ * A verification pass is run as a sequence of short slices, so that it does not
+ * hold an indexing thread for long. Reads are throttled to a maximum number of
+ * bytes per second, and charged to the read budget shared by indexing runs:
+ * a large artifact may be verified across several slices.
+ *
+ * @author Stamina Framework developers
+ */
+final class ArtifactScrubber {
+    /**
+     * Maximum number of bytes read in a single slice,
+     * so that other tasks are not delayed for too long.
+     */
+    private static final long MAX_SLICE_BYTES = 8 * 1024 * 1024;
+
+    private final Path repositoryDir;
+    private final long bytesPerSecond;
+    private final IoBudget ioBudget;
+    private final ByteBuffer buf = ByteBuffer.allocate(65536);
+    private final MessageDigest md;
+    private List<RepositoryIndexer.Resource> resources = Collections.emptyList();
+    /**
+     * Index of the artifact being verified.
+     */
+    private int next;
+    /**
+     * Number of bytes already verified in the current artifact.
+     */
+    private long position;
+    private long passBytes;
+    private long passTotalBytes;
+    private int passArtifactCount;
+    private long lastSliceBytes;
+
+    ArtifactScrubber(final Path repositoryDir, final long bytesPerSecond, final IoBudget ioBudget) {
+        this.repositoryDir = repositoryDir;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.ioBudget = ioBudget;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Start a new verification pass.
+     * A pass in progress is abandoned.
+     *
+     * @param indexedResources artifacts to verify, as indexed
+     */
+    void startPass(Collection<RepositoryIndexer.Resource> indexedResources) {
+        resources = new ArrayList<>(indexedResources);
+        next = 0;
+        position = 0;
+        passBytes = 0;
+        passTotalBytes = 0;
+        passArtifactCount = resources.size();
+        for (final RepositoryIndexer.Resource rsc : resources) {
+            passTotalBytes += rsc.fileSize;
+        }
+    }
+
+    /**
+     * Check if a verification pass is in progress.
+     *
+     * @return <code>true</code> if some artifacts remain to be verified
+     */
+    boolean isPassRunning() {
+        return next < resources.size();
+    }
+
+    /**
+     * Get current pass progress.
+     *
+     * @return progress, between 0 and 1
+     */
+    double getProgress() {
+        return passTotalBytes == 0 ? (isPassRunning() ? 0 : 1) : Math.min(1, (double) passBytes / passTotalBytes);
+    }
+
+    /**
+     * Get the number of artifacts verified during current (or last) pass.
+     *
+     * @return artifact count
+     */
+    int getArtifactCount() {
+        return passArtifactCount;
+    }
+
+    /**
+     * Verify artifacts for a slice.
+     * Artifacts changed since they were indexed are skipped:
+     * these are verified by the next indexing run.
+     * Artifacts which cannot be read are skipped as well.
+     *
+     * @param mismatches receives artifacts whose content does not match their indexed checksum
+     * @return delay in milliseconds before next slice, honoring the read budget,
+     * or <code>-1</code> if the verification pass is over
+     * @throws IOException if an artifact could not be read
+     */
+    long verify(Consumer<RepositoryIndexer.Resource> mismatches) throws IOException {
+        final long start = System.nanoTime();
+        final long sliceBytes = Math.min(bytesPerSecond, MAX_SLICE_BYTES);
+        long budget = sliceBytes;
+        while (budget > 0 && next < resources.size()) {
+            final RepositoryIndexer.Resource rsc = resources.get(next);
+            final Path file = repositoryDir.resolve(rsc.url);
+            if (!isUnchanged(file, rsc)) {
+                skip(rsc);
+                continue;
+            }
+            if (position == 0) {
+                md.reset();
+            }
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(position);
+                while (budget > 0 && position < rsc.fileSize) {
+                    buf.clear();
+                    if (buf.remaining() > budget) {
+                        buf.limit((int) budget);
+                    }
+                    final int bytesRead = channel.read(buf);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    buf.flip();
+                    md.update(buf);
+                    position += bytesRead;
+                    passBytes += bytesRead;
+                    budget -= bytesRead;
+                    if (ioBudget != null) {
+                        ioBudget.charge(bytesRead);
+                    }
+                }
+            } catch (ClosedByInterruptException | InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                skip(rsc);
+                continue;
+            }
+            if (position < rsc.fileSize && budget == 0) {
+                // This artifact will be verified during next slice.
+                break;
+            }
+
+            final String checksum = RepositoryIndexer.bytesToHex(md.digest());
+            if (!checksum.equals(rsc.checksum) && isUnchanged(file, rsc)) {
+                mismatches.accept(rsc);
+            }
+            ++next;
+            position = 0;
+        }
+        lastSliceBytes = sliceBytes - budget;
+
+        if (next >= resources.size()) {
+            resources = Collections.emptyList();
+            return -1;
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return Math.max(0, lastSliceBytes * 1000 / bytesPerSecond - elapsed);
+    }
+
+    /**
+     * Get the number of bytes read during the last slice.
+     *
+     * @return byte count
+     */
+    long getLastSliceBytes() {
+        return lastSliceBytes;
+    }
+
+    private void skip(RepositoryIndexer.Resource rsc) {
+        passBytes += rsc.fileSize - position;
+        ++next;
+        position = 0;
+    }
+
+    private static boolean isUnchanged(Path file, RepositoryIndexer.Resource rsc) {
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return false;
+        }
+        return attrs.size() == rsc.fileSize && attrs.lastModifiedTime().toMillis() == rsc.lastModified;
+    }
+}
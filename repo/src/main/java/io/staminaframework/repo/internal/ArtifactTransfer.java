@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copy artifact content to a servlet output stream, avoiding copies through
+ * the Java heap whenever the servlet container allows it.
+ * <p>
+ * Three strategies are used, from best to worst:
+ * <ol>
+ * <li>if the output stream is a {@link WritableByteChannel},
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} is used, which maps to
+ * <code>sendfile</code> when the container channel is a socket;</li>
+ * <li>if the output stream has a public <code>write(ByteBuffer)</code> method
+ * (such as Jetty <code>HttpOutput</code>), memory-mapped file regions are written,
+ * so that file pages go to the socket without being copied to the heap;</li>
+ * <li>otherwise, content is copied using large pooled buffers.</li>
+ * </ol>
+ *
+ * @author Stamina Framework developers
+ */
+final class ArtifactTransfer {
+    /**
+     * Size of buffers used when content is copied through the heap.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /**
+     * Maximum number of buffers kept in the pool.
+     */
+    private static final int BUFFER_POOL_SIZE = 32;
+    /**
+     * Size of file regions mapped in memory.
+     */
+    static final long MAPPED_REGION_SIZE = 8 * 1024 * 1024;
+    /**
+     * Content smaller than this size is not worth mapping in memory.
+     */
+    private static final long MIN_MAPPED_SIZE = 64 * 1024;
+
+    private static final BlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+    private static final ClassValue<Method> BYTE_BUFFER_WRITERS = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            try {
+                final Method m = type.getMethod("write", ByteBuffer.class);
+                if (Modifier.isPublic(m.getDeclaringClass().getModifiers())) {
+                    return m;
+                }
+            } catch (NoSuchMethodException ignore) {
+            }
+            return null;
+        }
+    };
+
+    private ArtifactTransfer() {
+    }
+
+    /**
+     * Copy file content to an output stream.
+     *
+     * @param channel  file channel
+     * @param position first byte to copy
+     * @param count    number of bytes to copy
+     * @param out      output stream
+     * @param zeroCopy <code>false</code> to always copy content through the heap
+     * @throws IOException if content could not be copied
+     */
+    static void transfer(FileChannel channel, long position, long count,
+                         OutputStream out, boolean zeroCopy) throws IOException {
+        if (zeroCopy) {
+            if (out instanceof WritableByteChannel) {
+                transferTo(channel, position, count, (WritableByteChannel) out);
+                return;
+            }
+            final Method byteBufferWriter = byteBufferWriter(out);
+            if (byteBufferWriter != null && count >= MIN_MAPPED_SIZE) {
+                writeMappedRegions(channel, position, count, out, byteBufferWriter);
+                return;
+            }
+        }
+        copy(channel, position, count, out);
+    }
+
+    private static void transferTo(FileChannel channel, long position, long count,
+                                   WritableByteChannel out) throws IOException {
+        long pos = position;
+        final long end = position + count;
+        while (pos < end) {
+            final long bytesWritten = channel.transferTo(pos, end - pos, out);
+            if (bytesWritten <= 0 && pos >= channel.size()) {
+                throw new EOFException("Unexpected end of file");
+            }
+            pos += bytesWritten;
+        }
+    }
+
+    private static void writeMappedRegions(FileChannel channel, long position, long count,
+                                           OutputStream out, Method byteBufferWriter) throws IOException {
+        long pos = position;
+        final long end = position + count;
+        if (end > channel.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        while (pos < end) {
+            final long regionSize = Math.min(MAPPED_REGION_SIZE, end - pos);
+            writeRegion(out, byteBufferWriter, channel.map(FileChannel.MapMode.READ_ONLY, pos, regionSize));
+            pos += regionSize;
+        }
+    }
+
+    /**
+     * Get the public <code>write(ByteBuffer)</code> method of an output stream.
+     *
+     * @param out output stream
+     * @return method, or <code>null</code> if this output stream has no such method
+     */
+    static Method byteBufferWriter(OutputStream out) {
+        return BYTE_BUFFER_WRITERS.get(out.getClass());
+    }
+
+    /**
+     * Write a file region mapped in memory.
+     *
+     * @param out              output stream
+     * @param byteBufferWriter method returned by {@link #byteBufferWriter(OutputStream)}
+     * @param region           file region
+     * @throws IOException if content could not be written
+     */
+    static void writeRegion(OutputStream out, Method byteBufferWriter, ByteBuffer region) throws IOException {
+        try {
+            byteBufferWriter.invoke(out, region);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to write artifact content", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Failed to write artifact content", e);
+        }
+    }
+
+    /**
+     * Get a buffer from the pool, or allocate a new one.
+     *
+     * @return buffer, which should be given back using {@link #releaseBuffer(byte[])}
+     */
+    static byte[] acquireBuffer() {
+        final byte[] buf = BUFFER_POOL.poll();
+        return buf == null ? new byte[BUFFER_SIZE] : buf;
+    }
+
+    static void releaseBuffer(byte[] buf) {
+        BUFFER_POOL.offer(buf);
+    }
+
+    private static void copy(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        final byte[] buf = acquireBuffer();
+        try {
+            final ByteBuffer bb = ByteBuffer.wrap(buf);
+            long pos = position;
+            final long end = position + count;
+            while (pos < end) {
+                bb.clear();
+                bb.limit((int) Math.min(buf.length, end - pos));
+                final int bytesRead = channel.read(bb, pos);
+                if (bytesRead == -1) {
+                    throw new EOFException("Unexpected end of file");
+                }
+                out.write(buf, 0, bytesRead);
+                pos += bytesRead;
+            }
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+}
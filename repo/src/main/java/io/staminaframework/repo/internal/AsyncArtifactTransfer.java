@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+
+/**
+ * Copy artifact content to a servlet output stream without blocking a container thread,
+ * using non-blocking I/O from Servlet 3.1.
+ * Content is written whenever the output stream is ready: no thread is held
+ * while the client is slowly reading a large artifact.
+ * <p>
+ * When zero-copy transfers are enabled and the output stream has a public
+ * <code>write(ByteBuffer)</code> method (see {@link ArtifactTransfer}), memory-mapped
+ * file regions are written; otherwise, content is copied through pooled heap buffers.
+ *
+ * @author Stamina Framework developers
+ */
+final class AsyncArtifactTransfer implements WriteListener, AsyncListener {
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final LongConsumer completionHandler;
+    private final Method byteBufferWriter;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private long position;
+    private byte[] buf;
+
+    private AsyncArtifactTransfer(final AsyncContext asyncContext, final ServletOutputStream out,
+                                  final FileChannel channel, final long position, final long count,
+                                  final boolean zeroCopy, final LongConsumer completionHandler) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.channel = channel;
+        this.start = position;
+        this.end = position + count;
+        this.position = position;
+        this.completionHandler = completionHandler;
+        this.byteBufferWriter = zeroCopy ? ArtifactTransfer.byteBufferWriter(out) : null;
+    }
+
+    /**
+     * Start copying file content to an asynchronous response.
+     * Response headers must be set before this method is called.
+     * The file channel is closed once the transfer is over.
+     *
+     * @param asyncContext      asynchronous context, started for the request
+     * @param channel           file channel
+     * @param position          first byte to copy
+     * @param count             number of bytes to copy
+     * @param zeroCopy          <code>false</code> to always copy content through the heap
+     * @param completionHandler called with the number of bytes sent when the transfer is over
+     *                          (whether it succeeded or not)
+     * @throws IOException if response output stream could not be retrieved
+     */
+    static void start(AsyncContext asyncContext, FileChannel channel, long position, long count,
+                      boolean zeroCopy, LongConsumer completionHandler) throws IOException {
+        // Large artifacts may take a long time to be downloaded:
+        // stalled clients are detected by the container idle timeout.
+        asyncContext.setTimeout(0);
+        final AsyncArtifactTransfer transfer = new AsyncArtifactTransfer(asyncContext,
+                asyncContext.getResponse().getOutputStream(), channel, position, count, zeroCopy, completionHandler);
+        asyncContext.addListener(transfer);
+        transfer.out.setWriteListener(transfer);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (byteBufferWriter != null) {
+            writeMappedRegions();
+            return;
+        }
+        if (buf == null) {
+            buf = ArtifactTransfer.acquireBuffer();
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (out.isReady()) {
+            if (position >= end) {
+                if (finish()) {
+                    asyncContext.complete();
+                }
+                return;
+            }
+            bb.clear();
+            bb.limit((int) Math.min(buf.length, end - position));
+            final int bytesRead = channel.read(bb, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of file");
+            }
+            out.write(buf, 0, bytesRead);
+            position += bytesRead;
+        }
+    }
+
+    private void writeMappedRegions() throws IOException {
+        if (end > channel.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        while (out.isReady()) {
+            if (position >= end) {
+                if (finish()) {
+                    asyncContext.complete();
+                }
+                return;
+            }
+            // A new region is mapped for every write: the container may keep on using
+            // a region once it is written, until the output stream is ready again.
+            final long regionSize = Math.min(ArtifactTransfer.MAPPED_REGION_SIZE, end - position);
+            ArtifactTransfer.writeRegion(out, byteBufferWriter,
+                    channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize));
+            position += regionSize;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Client is gone, or artifact could not be read: the response cannot be fixed.
+        if (finish()) {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        if (finish()) {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        if (finish()) {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Release resources held by this transfer.
+     *
+     * @return <code>false</code> if this transfer was already over
+     */
+    private boolean finish() {
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        if (buf != null) {
+            ArtifactTransfer.releaseBuffer(buf);
+            buf = null;
+        }
+        completionHandler.accept(position - start);
+        return true;
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.osgi.framework.Version;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary repository index, published next to the OBR index file.
+ * Clients may memory-map this file and look up resources without parsing XML.
+ * <p>
+ * All integers are big-endian. The file is made of these sections:
+ * <ol>
+ * <li>header (32 bytes): magic number, format version, index increment (64 bits),
+ * resource count, string count, string data offset, record data offset;</li>
+ * <li>resource table: for each resource, symbolic name string id
+ * and record offset (relative to record data), resources being sorted by
+ * symbolic name and version;</li>
+ * <li>checksum table: SHA-256 checksum for each resource (32 bytes);</li>
+ * <li>string table: offset of each string (relative to string data);</li>
+ * <li>string data: for each string, a varint byte length followed by UTF-8 bytes;</li>
+ * <li>record data: for each resource, varints holding file size, resource type,
+ * version (major, minor, micro, qualifier string id + 1), url string id,
+ * then capabilities and requirements.</li>
+ * </ol>
+ * Varints are unsigned LEB128 values. Strings are interned: a string is stored once,
+ * and referenced by its id.
+ *
+ * @author Stamina Framework developers
+ */
+final class BinaryIndex {
+    private static final int MAGIC = 0x4F425249;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RESOURCE_ENTRY_SIZE = 8;
+    private static final int CHECKSUM_SIZE = 32;
+
+    private final ByteBuffer buf;
+    private final int resourceCount;
+    private final int stringCount;
+    private final int checksumTableOffset;
+    private final int stringTableOffset;
+    private final int stringDataOffset;
+    private final int recordDataOffset;
+
+    /**
+     * Open a binary index.
+     *
+     * @param content binary index content (such as a memory-mapped file)
+     * @throws IOException if content is not a binary index
+     */
+    BinaryIndex(final ByteBuffer content) throws IOException {
+        this.buf = content.duplicate();
+        if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Invalid binary index");
+        }
+        if (buf.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary index version: " + buf.getInt(4));
+        }
+        resourceCount = buf.getInt(16);
+        stringCount = buf.getInt(20);
+        stringDataOffset = buf.getInt(24);
+        recordDataOffset = buf.getInt(28);
+        checksumTableOffset = HEADER_SIZE + resourceCount * RESOURCE_ENTRY_SIZE;
+        stringTableOffset = checksumTableOffset + resourceCount * CHECKSUM_SIZE;
+    }
+
+    /**
+     * Memory-map a binary index file.
+     *
+     * @param file binary index file
+     * @return binary index
+     * @throws IOException if file could not be read
+     */
+    static BinaryIndex map(Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new BinaryIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Get the path to the binary copy of an index file.
+     *
+     * @param indexFile index file
+     * @return binary index file
+     */
+    static Path binaryIndexFile(Path indexFile) {
+        final String name = indexFile.getFileName().toString();
+        final int i = name.lastIndexOf('.');
+        return indexFile.resolveSibling((i == -1 ? name : name.substring(0, i)) + ".idx");
+    }
+
+    long increment() {
+        return buf.getLong(8);
+    }
+
+    /**
+     * Read the increment of a binary index file, without mapping the whole file.
+     *
+     * @param file binary index file
+     * @return index increment, or <code>-1</code> if the file does not exist or is invalid
+     */
+    static long readIncrement(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return -1;
+        }
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // Read the whole header.
+            }
+            header.flip();
+            return new BinaryIndex(header).increment();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    int size() {
+        return resourceCount;
+    }
+
+    String checksum(int i) {
+        final byte[] hash = new byte[CHECKSUM_SIZE];
+        final ByteBuffer b = buf.duplicate();
+        b.position(checksumTableOffset + i * CHECKSUM_SIZE);
+        b.get(hash);
+        return RepositoryIndexer.bytesToHex(hash);
+    }
+
+    long fileSize(int i) {
+        return record(i).readVarLong();
+    }
+
+    String url(int i) {
+        final Reader r = record(i);
+        r.readVarLong();
+        r.readVarInt();
+        readVersion(r);
+        return string(r.readVarInt());
+    }
+
+    private Reader record(int i) {
+        return new Reader(recordDataOffset + buf.getInt(HEADER_SIZE + i * RESOURCE_ENTRY_SIZE + 4));
+    }
+
+    private Version readVersion(Reader r) {
+        final int major = r.readVarInt();
+        final int minor = r.readVarInt();
+        final int micro = r.readVarInt();
+        final int qualifier = r.readVarInt();
+        return new Version(major, minor, micro, qualifier == 0 ? null : string(qualifier - 1));
+    }
+
+    private String string(int id) {
+        if (id < 0 || id >= stringCount) {
+            throw new IllegalArgumentException("Invalid string id: " + id);
+        }
+        final Reader r = new Reader(stringDataOffset + buf.getInt(stringTableOffset + id * 4));
+        final byte[] bytes = new byte[r.readVarInt()];
+        final ByteBuffer b = buf.duplicate();
+        b.position(r.pos);
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a binary index file.
+     *
+     * @param file      binary index file
+     * @param increment index increment
+     * @param resources indexed resources, sorted by symbolic name and version
+     * @throws IOException if file could not be written
+     */
+    static void write(Path file, long increment, List<RepositoryIndexer.Resource> resources) throws IOException {
+        try (final Writer writer = new Writer(file, increment, Integer.MAX_VALUE, false)) {
+            for (final RepositoryIndexer.Resource rsc : resources) {
+                writer.add(rsc);
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Binary index writer, receiving resources one at a time.
+     * <p>
+     * When sections are spooled, these are written to temporary files next to
+     * the binary index file, and concatenated when the index is finished. Only a bounded number
+     * of strings are then kept in memory to be interned: a string which is no longer interned
+     * is stored again, so that memory usage does not depend on the number of resources.
+     */
+    static final class Writer implements Closeable {
+        private final Path file;
+        private final long increment;
+        private final int maxInternedStrings;
+        private final Map<String, Integer> stringIds;
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+        private final List<Section> sections = new ArrayList<>(5);
+        private final Section resourceTable;
+        private final Section checksumTable;
+        private final Section stringTable;
+        private final Section stringData;
+        private final Section recordData;
+        private int resourceCount;
+        private int stringCount;
+
+        /**
+         * Create a writer.
+         *
+         * @param file               binary index file
+         * @param increment          index increment
+         * @param maxInternedStrings maximum number of strings kept in memory to be interned
+         * @param spool              <code>true</code> to write index sections to temporary files
+         * @throws IOException if temporary files could not be created
+         */
+        Writer(final Path file, final long increment, final int maxInternedStrings,
+               final boolean spool) throws IOException {
+            this.file = file;
+            this.increment = increment;
+            this.maxInternedStrings = Math.max(1, maxInternedStrings);
+            stringIds = new HashMap<>(Math.min(this.maxInternedStrings, 1024));
+            final Path dir = spool ? file.toAbsolutePath().getParent() : null;
+            try {
+                resourceTable = newSection(dir);
+                checksumTable = newSection(dir);
+                stringTable = newSection(dir);
+                stringData = newSection(dir);
+                recordData = newSection(dir);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private Section newSection(Path dir) throws IOException {
+            final Section section = new Section(dir);
+            sections.add(section);
+            return section;
+        }
+
+        /**
+         * Add a resource. Resources must be added in symbolic name and version order.
+         * Bundles with an invalid version cannot be installed anyway: these are not part of this index.
+         *
+         * @param rsc resource
+         * @throws IOException if resource could not be written
+         */
+        void add(RepositoryIndexer.Resource rsc) throws IOException {
+            final Version version;
+            try {
+                version = Version.parseVersion(rsc.version);
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+            final int nameId = intern(rsc.symbolicName);
+            final int qualifierId = version.getQualifier().isEmpty() ? 0 : intern(version.getQualifier()) + 1;
+            final int urlId = intern(rsc.url);
+            final ByteArrayOutputStream capabilities = new ByteArrayOutputStream(512);
+            writeCapabilities(capabilities, rsc.capabilities);
+            writeCapabilities(capabilities, rsc.requirements);
+
+            buf.reset();
+            writeVarLong(buf, rsc.fileSize);
+            writeVarLong(buf, rsc.type.ordinal());
+            writeVarLong(buf, version.getMajor());
+            writeVarLong(buf, version.getMinor());
+            writeVarLong(buf, version.getMicro());
+            writeVarLong(buf, qualifierId);
+            writeVarLong(buf, urlId);
+            resourceTable.out.writeInt(nameId);
+            resourceTable.out.writeInt(offset(recordData.size()));
+            checksumTable.out.write(hexToBytes(rsc.checksum));
+            buf.writeTo(recordData.out);
+            capabilities.writeTo(recordData.out);
+            ++resourceCount;
+        }
+
+        /**
+         * Write the binary index file.
+         *
+         * @throws IOException if file could not be written
+         */
+        void finish() throws IOException {
+            final long stringTableOffset = HEADER_SIZE + (long) resourceCount * (RESOURCE_ENTRY_SIZE + CHECKSUM_SIZE);
+            final int stringDataOffset = offset(stringTableOffset + stringTable.size());
+            final int recordDataOffset = offset(stringDataOffset + stringData.size());
+            offset(recordDataOffset + recordData.size());
+            try (final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(increment);
+                out.writeInt(resourceCount);
+                out.writeInt(stringCount);
+                out.writeInt(stringDataOffset);
+                out.writeInt(recordDataOffset);
+                for (final Section section : sections) {
+                    section.copyTo(out);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException error = null;
+            for (final Section section : sections) {
+                try {
+                    section.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private int intern(String str) throws IOException {
+            final Integer id = stringIds.get(str);
+            if (id != null) {
+                return id;
+            }
+            if (stringIds.size() >= maxInternedStrings) {
+                stringIds.clear();
+            }
+            final int newId = stringCount++;
+            stringTable.out.writeInt(offset(stringData.size()));
+            final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            buf.reset();
+            writeVarLong(buf, bytes.length);
+            buf.writeTo(stringData.out);
+            stringData.out.write(bytes);
+            stringIds.put(str, newId);
+            return newId;
+        }
+
+        private void writeCapabilities(ByteArrayOutputStream out, List<Capability> caps) throws IOException {
+            writeVarLong(out, caps.size());
+            for (final Capability cap : caps) {
+                writeVarLong(out, intern(cap.namespace));
+                writeVarLong(out, cap.directives.size());
+                for (final Map.Entry<String, String> e : cap.directives.entrySet()) {
+                    writeVarLong(out, intern(e.getKey()));
+                    writeVarLong(out, intern(e.getValue()));
+                }
+                writeVarLong(out, cap.attributes.size());
+                for (final Map.Entry<String, Capability.Attribute> e : cap.attributes.entrySet()) {
+                    writeVarLong(out, intern(e.getKey()));
+                    final String type = e.getValue().type;
+                    writeVarLong(out, type == null ? 0 : intern(type) + 1);
+                    writeVarLong(out, intern(e.getValue().value));
+                }
+            }
+        }
+
+        private static int offset(long offset) throws IOException {
+            if (offset >= Integer.MAX_VALUE) {
+                throw new IOException("Binary index is too large");
+            }
+            return (int) offset;
+        }
+    }
+
+    /**
+     * Binary index section, kept in memory or spooled to a temporary file.
+     */
+    private static final class Section implements Closeable {
+        final DataOutputStream out;
+        private final Path file;
+        private final ByteArrayOutputStream content;
+        private long size;
+
+        Section(final Path dir) throws IOException {
+            if (dir == null) {
+                file = null;
+                content = new ByteArrayOutputStream(16384);
+                out = new DataOutputStream(content);
+            } else {
+                file = Files.createTempFile(dir, RepositoryIndexer.TEMP_FILE_PREFIX, ".tmp");
+                content = null;
+                out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536) {
+                    @Override
+                    public synchronized void write(int b) throws IOException {
+                        super.write(b);
+                        ++size;
+                    }
+
+                    @Override
+                    public synchronized void write(byte[] b, int off, int len) throws IOException {
+                        super.write(b, off, len);
+                        size += len;
+                    }
+                });
+            }
+        }
+
+        long size() {
+            return file == null ? content.size() : size;
+        }
+
+        void copyTo(OutputStream target) throws IOException {
+            out.flush();
+            if (file == null) {
+                content.writeTo(target);
+            } else {
+                Files.copy(file, target);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        final byte[] bytes = new byte[CHECKSUM_SIZE];
+        for (int i = 0; i < bytes.length && i * 2 + 1 < hex.length(); ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Sequential varint reader.
+     */
+    private final class Reader {
+        int pos;
+
+        Reader(final int pos) {
+            this.pos = pos;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = buf.get(pos++);
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Byte range, as defined in RFC 7233.
+ *
+ * @author Stamina Framework developers
+ */
+final class ByteRange {
+    /**
+     * Maximum number of ranges accepted in a single request:
+     * the <code>Range</code> header is ignored beyond this limit.
+     */
+    private static final int MAX_RANGES = 32;
+
+    /**
+     * First byte position (inclusive).
+     */
+    final long start;
+    /**
+     * Last byte position (inclusive).
+     */
+    final long end;
+
+    ByteRange(final long start, final long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Get the <code>Content-Range</code> header value for this range.
+     *
+     * @param size entity size
+     * @return header value
+     */
+    String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parse a <code>Range</code> header.
+     * Overlapping or adjacent ranges are coalesced.
+     *
+     * @param header header value
+     * @param size   entity size
+     * @return satisfiable ranges (an empty list if no range can be satisfied),
+     * or <code>null</code> if this header must be ignored
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        final String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        final List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (final String rawSpec : specs) {
+            final String spec = rawSpec.trim();
+            final int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            final long start;
+            final long end;
+            if (dash == 0) {
+                // Suffix range: last N bytes.
+                final long suffixLength = parsePosition(spec.substring(1));
+                if (suffixLength == -1) {
+                    return null;
+                }
+                if (suffixLength == 0) {
+                    continue;
+                }
+                start = Math.max(0, size - suffixLength);
+                end = size - 1;
+            } else {
+                start = parsePosition(spec.substring(0, dash));
+                if (start == -1) {
+                    return null;
+                }
+                if (dash == spec.length() - 1) {
+                    end = size - 1;
+                } else {
+                    final long lastPos = parsePosition(spec.substring(dash + 1));
+                    if (lastPos == -1 || lastPos < start) {
+                        return null;
+                    }
+                    end = Math.min(size - 1, lastPos);
+                }
+            }
+            if (start < size && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * Parse a byte position, made of digits only: signs are not allowed.
+     *
+     * @param str byte position
+     * @return byte position, or <code>-1</code> if it is invalid
+     */
+    private static long parsePosition(String str) {
+        if (str.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        try {
+            return Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            // Too many digits.
+            return -1;
+        }
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        final List<ByteRange> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, Comparator.comparingLong(r -> r.start));
+
+        final List<ByteRange> result = new ArrayList<>(sorted.size());
+        ByteRange current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); ++i) {
+            final ByteRange next = sorted.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Capability or requirement declared by a resource, as written to the repository index.
+ * Both share the same structure: a namespace, typed attributes and directives.
+ *
+ * @author Stamina Framework developers
+ */
+final class Capability {
+    final String namespace;
+    final Map<String, Attribute> attributes = new LinkedHashMap<>(4);
+    final Map<String, String> directives = new LinkedHashMap<>(2);
+
+    Capability(final String namespace) {
+        this.namespace = namespace;
+    }
+
+    Capability attribute(String name, String value) {
+        return attribute(name, value, null);
+    }
+
+    Capability attribute(String name, String value, String type) {
+        attributes.put(name, new Attribute(value, type));
+        return this;
+    }
+
+    Capability directive(String name, String value) {
+        directives.put(name, value);
+        return this;
+    }
+
+    /**
+     * Capability attribute.
+     */
+    static final class Attribute {
+        final String value;
+        /**
+         * Attribute type (such as <code>Version</code> or <code>List&lt;String&gt;</code>),
+         * or <code>null</code> for a string.
+         */
+        final String type;
+
+        Attribute(final String value, final String type) {
+            this.value = value;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.repo.internal;
+
+import io.staminaframework.repo.RepositoryLookup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentFactory;
+import org.osgi.service.component.ComponentInstance;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
+import org.osgi.service.log.LogService;
+
+import javax.servlet.Servlet;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * This component publishes a composite repository, aggregating other repositories.
+ * The composite index is merged from indexes published by member repositories:
+ * artifacts are not read again, and only changed members are processed when
+ * the composite index is updated. Artifacts are still served by member repositories,
+ * using relative URLs in the composite index.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(configurationPid = "io.staminaframework.repo.composite",
+        configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class CompositeRepositoryManager {
+    private static final String INDEX_FILE = "obr.xml";
+
+    /**
+     * Component configuration.
+     *
+     * @author Stamina Framework developers
+     */
+    public @interface Config {
+        /**
+         * Repository identifier (must be unique).
+         */
+        String id();
+
+        /**
+         * Repository name (may be <code>null</code> or empty).
+         */
+        String name() default "";
+
+        /**
+         * Identifiers of member repositories. When an artifact is found
+         * in several members, it is published from the first one.
+         */
+        String[] members();
+
+        /**
+         * <code>Cache-Control</code> header value sent with the repository index
+         * (may be empty).
+         */
+        String indexCacheControl() default "no-cache";
+
+        /**
+         * Number of index generations for which changes are kept in memory,
+         * so that clients may only download changes made since a previous index.
+         */
+        int indexHistorySize() default 32;
+
+        /**
+         * Delay in seconds before a request waiting for index changes is completed
+         * (set to zero to disable index change notifications).
+         */
+        long indexNotificationTimeout() default 25;
+    }
+
+    @Reference
+    private LogService logService;
+    @Reference(target = "(" + ComponentConstants.COMPONENT_FACTORY + "=io.staminaframework.repo.servlet)")
+    private ComponentFactory componentFactory;
+    @Reference
+    private IndexingScheduler indexingScheduler;
+    @Reference
+    private RepositoryRegistry repositoryRegistry;
+    private ComponentInstance servletInstance;
+    private ServiceRegistration<RepositoryLookup> lookupRegistration;
+    private final RepositoryRegistry.Listener registryListener = this::memberIndexCommitted;
+    private final Object changedMembersLock = new Object();
+    private final Set<String> changedMembers = new HashSet<>(4);
+    private boolean stopped;
+    private final Map<String, MemberIndex> memberIndexes = new HashMap<>(4);
+    private String indexFingerprint;
+    private String repositoryId;
+    private String repositoryName;
+    private List<String> members;
+    private Path repositoryDir;
+
+    @Activate
+    void activate(BundleContext bundleContext, Config config) throws IOException, InvalidSyntaxException {
+        if (config.id() == null || config.id().length() == 0) {
+            throw new IllegalArgumentException("Missing repository id");
+        }
+        if (config.members() == null || config.members().length == 0) {
+            throw new IllegalArgumentException("Missing composite repository members");
+        }
+
+        repositoryId = config.id();
+        repositoryName = config.name();
+        members = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(config.members())));
+        members.remove(repositoryId);
+
+        // Composite index is not published next to artifacts:
+        // index files are kept in the bundle data area.
+        final File dataDir = bundleContext.getDataFile("composite-" + repositoryId);
+        if (dataDir == null) {
+            throw new IllegalStateException("No persistent storage available for composite repository: "
+                    + repositoryId);
+        }
+        repositoryDir = dataDir.toPath();
+        Files.createDirectories(repositoryDir);
+        repositoryDir = repositoryDir.toRealPath();
+
+        // Check if a servlet exists with this name.
+        final ServiceReference<?>[] servletRefs =
+                bundleContext.getAllServiceReferences(Servlet.class.getName(), "(repository.id=" + repositoryId + ")");
+        if (servletRefs != null && servletRefs.length != 0) {
+            throw new IllegalArgumentException("Already existing repository id: " + repositoryId);
+        }
+
+        final Dictionary<String, Object> servletProps = new Hashtable<>(16);
+        servletProps.put("repository.path", repositoryDir.toString());
+        servletProps.put("repository.id", repositoryId);
+        servletProps.put("repository.cache-control.index", config.indexCacheControl());
+        servletProps.put("repository.cache-control.artifact", "");
+        // Artifacts are served by member repositories.
+        servletProps.put("repository.artifact-cache-size", 0);
+        servletProps.put("repository.index-history-size", config.indexHistorySize());
+        servletProps.put("repository.notification-timeout", config.indexNotificationTimeout());
+        servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED, true);
+        servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN, "/" + repositoryId + "/*");
+        servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_NAME, "io.staminaframework.repo");
+        logService.log(LogService.LOG_INFO, "Creating composite repository servlet: " + repositoryId);
+        servletInstance = componentFactory.newInstance(servletProps);
+        final Dictionary<String, Object> lookupProps = new Hashtable<>(1);
+        lookupProps.put(RepositoryLookup.REPOSITORY_ID, repositoryId);
+        lookupRegistration = bundleContext.registerService(RepositoryLookup.class,
+                ((RepositoryServlet) servletInstance.getInstance()).getLookup(), lookupProps);
+
+        synchronized (changedMembersLock) {
+            stopped = false;
+            changedMembers.addAll(members);
+        }
+        repositoryRegistry.addListener(registryListener);
+        scheduleRebuild();
+    }
+
+    @Deactivate
+    void deactivate() {
+        repositoryRegistry.removeListener(registryListener);
+        synchronized (changedMembersLock) {
+            stopped = true;
+        }
+        if (repositoryId != null) {
+            indexingScheduler.cancel(repositoryId);
+        }
+        if (lookupRegistration != null) {
+            lookupRegistration.unregister();
+            lookupRegistration = null;
+        }
+        if (servletInstance != null) {
+            servletInstance.dispose();
+            servletInstance = null;
+        }
+    }
+
+    private void memberIndexCommitted(String memberId, IndexSnapshot index) {
+        if (!members.contains(memberId)) {
+            return;
+        }
+        synchronized (changedMembersLock) {
+            changedMembers.add(memberId);
+        }
+        scheduleRebuild();
+    }
+
+    private void scheduleRebuild() {
+        synchronized (changedMembersLock) {
+            if (stopped) {
+                return;
+            }
+        }
+        indexingScheduler.submit(repositoryId, this::changedMemberCount, this::rebuildIndex);
+    }
+
+    private int changedMemberCount() {
+        synchronized (changedMembersLock) {
+            return changedMembers.size();
+        }
+    }
+
+    /**
+     * Merge member indexes into the composite index.
+     * Member resources are kept sorted between runs:
+     * only resources from changed members are sorted again.
+     */
+    private void rebuildIndex() {
+        final RepositoryServlet repoServlet;
+        synchronized (changedMembersLock) {
+            if (stopped || changedMembers.isEmpty()) {
+                return;
+            }
+            changedMembers.clear();
+            repoServlet = (RepositoryServlet) servletInstance.getInstance();
+        }
+
+        final List<List<RepositoryIndexer.Resource>> memberResources = new ArrayList<>(members.size());
+        int resourceCount = 0;
+        for (final String memberId : members) {
+            final IndexSnapshot index = repositoryRegistry.getIndex(memberId);
+            MemberIndex memberIndex = memberIndexes.get(memberId);
+            if (index == null) {
+                memberIndexes.remove(memberId);
+                continue;
+            }
+            if (memberIndex == null || memberIndex.index != index) {
+                memberIndex = new MemberIndex(memberId, index);
+                memberIndexes.put(memberId, memberIndex);
+            }
+            memberResources.add(memberIndex.resources);
+            resourceCount += memberIndex.resources.size();
+        }
+        final List<RepositoryIndexer.Resource> resources = merge(memberResources, resourceCount);
+
+        final String fingerprint = ObrWriter.fingerprint(repositoryName, resources);
+        final IndexSnapshot currentSnapshot = repoServlet.getIndex();
+        final Path indexFile = repositoryDir.resolve(INDEX_FILE);
+        if (fingerprint.equals(indexFingerprint) && currentSnapshot != null && Files.isRegularFile(indexFile)) {
+            logService.log(LogService.LOG_DEBUG, "Composite repository index is up-to-date: " + repositoryId);
+            return;
+        }
+
+        try {
+            // Index files left by a previous run are kept if they are up-to-date.
+            final boolean written = RepositoryIndexer.publishIndex(indexFile, repositoryName, resources,
+                    fingerprint, currentSnapshot == null ? null : indexFingerprint);
+            indexFingerprint = fingerprint;
+            if (written || currentSnapshot == null) {
+                repoServlet.commitIndex(IndexSnapshot.load(indexFile, resources));
+            }
+            if (written) {
+                logService.log(LogService.LOG_INFO, "Composite repository index updated: " + repositoryId
+                        + " (" + resources.size() + " resource(s) from " + memberResources.size() + " member(s))");
+            }
+        } catch (ClosedByInterruptException | InterruptedIOException ignore) {
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Error while updating composite repository index: " + repositoryId, e);
+            // Make sure next run is not skipped.
+            indexFingerprint = null;
+        }
+    }
+
+    /**
+     * Merge sorted member resources. When the same artifact content
+     * is found in several members, only resources from the first one are kept.
+     *
+     * @param memberResources sorted resources for each member, in member order
+     * @param resourceCount   total number of resources
+     * @return merged resources, using {@link RepositoryIndexer#RESOURCE_ORDER}
+     */
+    static List<RepositoryIndexer.Resource> merge(List<List<RepositoryIndexer.Resource>> memberResources,
+                                                  int resourceCount) {
+        final Map<String, Integer> owners = new HashMap<>(resourceCount);
+        for (int i = 0; i < memberResources.size(); ++i) {
+            for (final RepositoryIndexer.Resource rsc : memberResources.get(i)) {
+                owners.putIfAbsent(rsc.checksum, i);
+            }
+        }
+        final List<RepositoryIndexer.Resource> resources = new ArrayList<>(resourceCount);
+        final PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, memberResources.size()),
+                (h1, h2) -> RepositoryIndexer.RESOURCE_ORDER.compare(
+                        memberResources.get(h1[0]).get(h1[1]), memberResources.get(h2[0]).get(h2[1])));
+        for (int i = 0; i < memberResources.size(); ++i) {
+            if (!memberResources.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        while (!heads.isEmpty()) {
+            final int[] head = heads.poll();
+            final List<RepositoryIndexer.Resource> member = memberResources.get(head[0]);
+            final RepositoryIndexer.Resource rsc = member.get(head[1]);
+            if (owners.get(rsc.checksum) == head[0]) {
+                resources.add(rsc);
+            }
+            if (++head[1] < member.size()) {
+                heads.add(head);
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Resources published by a member repository, as seen from the composite repository.
+     */
+    private static final class MemberIndex {
+        final IndexSnapshot index;
+        final List<RepositoryIndexer.Resource> resources;
+
+        MemberIndex(final String memberId, final IndexSnapshot index) {
+            this.index = index;
+            final String prefix = "../" + memberId + "/";
+            resources = new ArrayList<>(index.resources.size());
+            for (final RepositoryIndexer.Resource rsc : index.resources.values()) {
+                resources.add(rsc.withUrl(prefix + rsc.url.replace(File.separatorChar, '/')));
+            }
+            resources.sort(RepositoryIndexer.RESOURCE_ORDER);
+        }
+    }
+}
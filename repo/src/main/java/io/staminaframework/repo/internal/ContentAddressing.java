@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Content-addressed artifact URLs.
+ * When this layout is enabled, artifacts are published under a URL derived from
+ * their SHA-256 checksum (<code>sha256/&lt;hex&gt;</code>), instead of their path in the repository:
+ * artifact content behind such a URL never changes, and copies of the same artifact
+ * (in different directories) are published once.
+ *
+ * @author Stamina Framework developers
+ */
+final class ContentAddressing {
+    /**
+     * Prefix for content-addressed artifact URLs, relative to the repository root.
+     */
+    static final String URL_PREFIX = "sha256/";
+
+    private ContentAddressing() {
+    }
+
+    /**
+     * Get the content-addressed URL for an artifact.
+     *
+     * @param checksum artifact SHA-256 checksum, as an hexadecimal string
+     * @return URL relative to the repository root
+     */
+    static String contentUrl(String checksum) {
+        return URL_PREFIX + checksum;
+    }
+
+    /**
+     * Get resources as published in a content-addressed index.
+     * Resources are copied with a content-addressed URL, and duplicate artifacts
+     * are dropped: the first resource found for each checksum is kept.
+     *
+     * @param resources indexed resources
+     * @return published resources, in the same order
+     */
+    static List<RepositoryIndexer.Resource> publish(Collection<RepositoryIndexer.Resource> resources) {
+        final List<RepositoryIndexer.Resource> published = new ArrayList<>(resources.size());
+        final Set<String> checksums = new HashSet<>(resources.size() * 2);
+        for (final RepositoryIndexer.Resource rsc : resources) {
+            if (checksums.add(rsc.checksum)) {
+                published.add(rsc.withUrl(contentUrl(rsc.checksum)));
+            }
+        }
+        return published;
+    }
+
+    /**
+     * Get resources as published in a content-addressed index, without holding every resource in memory.
+     * This method has the same result as {@link #publish(Collection)}, provided that resources are sorted
+     * using {@link RepositoryIndexer#RESOURCE_ORDER}: artifacts with the same content have the same
+     * symbolic name and version, so that duplicate artifacts are next to each other.
+     *
+     * @param resources indexed resources, sorted
+     * @return published resources, in the same order
+     */
+    static Iterator<RepositoryIndexer.Resource> publishSorted(Iterator<RepositoryIndexer.Resource> resources) {
+        return new Iterator<RepositoryIndexer.Resource>() {
+            private final Set<String> checksums = new HashSet<>(4);
+            private RepositoryIndexer.Resource previous;
+            private RepositoryIndexer.Resource next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && resources.hasNext()) {
+                    final RepositoryIndexer.Resource rsc = resources.next();
+                    if (previous == null || !previous.symbolicName.equals(rsc.symbolicName)
+                            || !previous.version.equals(rsc.version)) {
+                        // Checksums are only kept for resources sharing the same symbolic name and version.
+                        checksums.clear();
+                    }
+                    previous = rsc;
+                    if (checksums.add(rsc.checksum)) {
+                        next = rsc.withUrl(contentUrl(rsc.checksum));
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public RepositoryIndexer.Resource next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final RepositoryIndexer.Resource rsc = next;
+                next = null;
+                return rsc;
+            }
+        };
+    }
+}
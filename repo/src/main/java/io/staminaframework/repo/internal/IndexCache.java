@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Persistent cache holding artifact metadata computed by the repository indexer.
+ * An entry is keyed by the artifact path (relative to the repository directory),
+ * and is only valid as long as artifact size, modification time and file key
+ * are unchanged.
+ *
+ * @author Stamina Framework developers
+ */
+class IndexCache {
+    private static final int MAGIC = 0x53544958;
+    private static final int FORMAT_VERSION = 4;
+    /**
+     * Maximum length of a string read from a cache file, so that a corrupted length
+     * does not exhaust the Java heap.
+     */
+    private static final int MAX_LONG_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Load a cache from a file.
+     * An empty cache is returned if the file does not exist or if it cannot be read.
+     *
+     * @param cacheFile cache file
+     * @return index cache
+     */
+    static IndexCache load(Path cacheFile) {
+        final IndexCache cache = new IndexCache();
+        if (cacheFile == null || !Files.exists(cacheFile)) {
+            return cache;
+        }
+        try (final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(cacheFile), 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return cache;
+            }
+            final int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; ++i) {
+                final String url = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                final String fileKey = readNullableString(in);
+                final RepositoryIndexer.Resource rsc =
+                        in.readBoolean() ? readResource(in, url, size, lastModified) : null;
+                cache.entries.put(url, new Entry(size, lastModified, fileKey, rsc));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Cache is corrupted: start from scratch.
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Store this cache to a file.
+     * The file is first written to a temporary file, which is then atomically
+     * moved to its final location.
+     *
+     * @param cacheFile cache file
+     * @throws IOException if cache could not be written
+     */
+    void store(Path cacheFile) throws IOException {
+        final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                writeNullableString(out, entry.fileKey);
+                final RepositoryIndexer.Resource rsc = entry.resource;
+                out.writeBoolean(rsc != null);
+                if (rsc != null) {
+                    writeResource(out, rsc);
+                }
+            }
+        }
+        Files.move(tmpFile, cacheFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * Get a cache entry, if it is still valid.
+     *
+     * @param url   artifact path, relative to the repository directory
+     * @param attrs current artifact file attributes
+     * @return cache entry, or <code>null</code> if this artifact must be indexed again
+     */
+    Entry get(String url, BasicFileAttributes attrs) {
+        final Entry entry = entries.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.size != attrs.size()
+                || entry.lastModified != attrs.lastModifiedTime().toMillis()
+                || (entry.fileKey != null && !entry.fileKey.equals(fileKey(attrs)))) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Put a cache entry.
+     *
+     * @param url   artifact path, relative to the repository directory
+     * @param attrs artifact file attributes
+     * @param rsc   indexed resource, or <code>null</code> if this artifact is not an OSGi resource
+     */
+    void put(String url, BasicFileAttributes attrs, RepositoryIndexer.Resource rsc) {
+        entries.put(url, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey(attrs), rsc));
+    }
+
+    /**
+     * Drop cache entries for artifacts which are not part of the repository anymore.
+     *
+     * @param urls artifacts to keep
+     */
+    void retainAll(Set<String> urls) {
+        entries.keySet().retainAll(urls);
+    }
+
+    /**
+     * Iterate over cache entries, sorted by artifact path.
+     *
+     * @param action action to perform for each entry
+     */
+    void forEach(BiConsumer<String, Entry> action) {
+        entries.forEach(action);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Read resource metadata written by {@link #writeResource(DataOutput, RepositoryIndexer.Resource)}.
+     *
+     * @param in           input
+     * @param url          artifact path, relative to the repository directory
+     * @param size         artifact size
+     * @param lastModified artifact modification time
+     * @return resource
+     * @throws IOException if resource could not be read
+     */
+    static RepositoryIndexer.Resource readResource(DataInput in, String url, long size, long lastModified)
+            throws IOException {
+        final RepositoryIndexer.Resource rsc = new RepositoryIndexer.Resource();
+        rsc.url = url;
+        rsc.fileSize = size;
+        rsc.lastModified = lastModified;
+        rsc.checksum = in.readUTF();
+        rsc.type = RepositoryIndexer.Resource.Type.valueOf(in.readUTF());
+        rsc.symbolicName = in.readUTF();
+        rsc.version = in.readUTF();
+        rsc.capabilities = readCapabilities(in);
+        rsc.requirements = readCapabilities(in);
+        return rsc;
+    }
+
+    /**
+     * Write resource metadata, except for its URL, size and modification time.
+     *
+     * @param out output
+     * @param rsc resource
+     * @throws IOException if resource could not be written
+     */
+    static void writeResource(DataOutput out, RepositoryIndexer.Resource rsc) throws IOException {
+        out.writeUTF(rsc.checksum);
+        out.writeUTF(rsc.type.name());
+        out.writeUTF(rsc.symbolicName);
+        out.writeUTF(rsc.version);
+        writeCapabilities(out, rsc.capabilities);
+        writeCapabilities(out, rsc.requirements);
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        final Object key = attrs.fileKey();
+        return key == null ? null : key.toString();
+    }
+
+    private static List<Capability> readCapabilities(DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        if (count < 0) {
+            throw new IOException("Invalid capability count: " + count);
+        }
+        final List<Capability> caps = new ArrayList<>(Math.min(count, 16));
+        for (int i = 0; i < count; ++i) {
+            final Capability cap = new Capability(in.readUTF());
+            final int dirCount = in.readInt();
+            for (int j = 0; j < dirCount; ++j) {
+                cap.directive(in.readUTF(), readLongString(in));
+            }
+            final int attrCount = in.readInt();
+            for (int j = 0; j < attrCount; ++j) {
+                cap.attribute(in.readUTF(), readLongString(in), readNullableString(in));
+            }
+            caps.add(cap);
+        }
+        return caps;
+    }
+
+    private static void writeCapabilities(DataOutput out, List<Capability> caps) throws IOException {
+        out.writeInt(caps.size());
+        for (final Capability cap : caps) {
+            out.writeUTF(cap.namespace);
+            out.writeInt(cap.directives.size());
+            for (final Map.Entry<String, String> e : cap.directives.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeLongString(out, e.getValue());
+            }
+            out.writeInt(cap.attributes.size());
+            for (final Map.Entry<String, Capability.Attribute> e : cap.attributes.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeLongString(out, e.getValue().value);
+                writeNullableString(out, e.getValue().type);
+            }
+        }
+    }
+
+    /**
+     * Read a string which may not fit in modified UTF-8 encoding limits
+     * (such as <code>uses</code> directives).
+     */
+    private static String readLongString(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_LONG_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        final byte[] buf = new byte[length];
+        in.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLongString(DataOutput out, String str) throws IOException {
+        final byte[] buf = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(buf.length);
+        out.write(buf);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutput out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    /**
+     * Cache entry.
+     */
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final String fileKey;
+        final RepositoryIndexer.Resource resource;
+
+        Entry(final long size, final long lastModified, final String fileKey,
+              final RepositoryIndexer.Resource resource) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.resource = resource;
+        }
+    }
+}
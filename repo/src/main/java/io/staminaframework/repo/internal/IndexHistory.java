@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * History of recent index generations, used to send clients changes made to
+ * the repository index since a previous increment, instead of the whole index.
+ * <p>
+ * For each generation, only paths of changed resources are kept,
+ * so that memory usage is proportional to repository churn.
+ *
+ * @author Stamina Framework developers
+ */
+final class IndexHistory {
+    private final int maxGenerations;
+    private final boolean contentAddressed;
+    private final Deque<Generation> generations = new ArrayDeque<>();
+    /**
+     * Oldest increment changes can be computed from, or <code>-1</code> if none.
+     */
+    private long baseIncrement = -1;
+    /**
+     * Changes sent to clients, by previous increment: these are valid for the current increment only.
+     */
+    private final Map<Long, byte[]> deltas = new HashMap<>(8);
+    private long deltasIncrement = -1;
+
+    IndexHistory(final int maxGenerations, final boolean contentAddressed) {
+        this.maxGenerations = Math.max(0, maxGenerations);
+        this.contentAddressed = contentAddressed;
+    }
+
+    /**
+     * Record a new index generation.
+     *
+     * @param previous previously committed index, or <code>null</code> if none
+     * @param next     newly committed index
+     */
+    synchronized void commit(IndexSnapshot previous, IndexSnapshot next) {
+        if (next.increment < 0 || maxGenerations == 0) {
+            generations.clear();
+            baseIncrement = -1;
+            return;
+        }
+        if (baseIncrement == -1 || previous == null || previous.increment < 0) {
+            // The first index loaded by the servlet does not hold any resource metadata:
+            // history starts with the first index built by the repository indexer.
+            generations.clear();
+            baseIncrement = next.increment;
+            return;
+        }
+        if (previous.increment == next.increment) {
+            return;
+        }
+
+        final Map<String, RepositoryIndexer.Resource> previousResources = publishedResources(previous);
+        final Map<String, RepositoryIndexer.Resource> nextResources = publishedResources(next);
+        final Set<String> changedUrls = new HashSet<>(16);
+        for (final Map.Entry<String, RepositoryIndexer.Resource> e : nextResources.entrySet()) {
+            final RepositoryIndexer.Resource previousRsc = previousResources.get(e.getKey());
+            if (previousRsc == null || !previousRsc.checksum.equals(e.getValue().checksum)) {
+                changedUrls.add(e.getKey());
+            }
+        }
+        for (final String url : previousResources.keySet()) {
+            if (!nextResources.containsKey(url)) {
+                changedUrls.add(url);
+            }
+        }
+        generations.addLast(new Generation(next.increment, changedUrls));
+        while (generations.size() > maxGenerations) {
+            baseIncrement = generations.removeFirst().increment;
+        }
+    }
+
+    /**
+     * Get changes made to an index since a previous increment.
+     *
+     * @param since   previous index increment
+     * @param current current index
+     * @return changes (as an XML document), or <code>null</code> if changes
+     * cannot be computed from this increment (the whole index must be sent)
+     * @throws IOException if changes could not be written
+     */
+    synchronized byte[] changesSince(long since, IndexSnapshot current) throws IOException {
+        if (baseIncrement == -1 || since < baseIncrement || since > current.increment) {
+            return null;
+        }
+        if (deltasIncrement != current.increment) {
+            deltas.clear();
+            deltasIncrement = current.increment;
+        }
+        byte[] delta = deltas.get(since);
+        if (delta != null) {
+            return delta;
+        }
+
+        final Set<String> changedUrls = new TreeSet<>();
+        for (final Iterator<Generation> i = generations.descendingIterator(); i.hasNext(); ) {
+            final Generation gen = i.next();
+            if (gen.increment <= since) {
+                break;
+            }
+            if (gen.increment <= current.increment) {
+                changedUrls.addAll(gen.changedUrls);
+            }
+        }
+        final Map<String, RepositoryIndexer.Resource> currentResources = publishedResources(current);
+        final List<RepositoryIndexer.Resource> updated = new ArrayList<>(changedUrls.size());
+        final List<String> removed = new ArrayList<>(4);
+        for (final String url : changedUrls) {
+            final RepositoryIndexer.Resource rsc = currentResources.get(url);
+            if (rsc == null) {
+                removed.add(url);
+            } else {
+                updated.add(rsc);
+            }
+        }
+        updated.sort(RepositoryIndexer.RESOURCE_ORDER);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 + updated.size() * 2048);
+        ObrWriter.writeDelta(out, since, current.increment, updated, removed);
+        delta = out.toByteArray();
+        if (deltas.size() < maxGenerations) {
+            deltas.put(since, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * Get resources as published in an index.
+     *
+     * @param snapshot index snapshot
+     * @return resources, by URL
+     */
+    private Map<String, RepositoryIndexer.Resource> publishedResources(IndexSnapshot snapshot) {
+        if (!contentAddressed) {
+            return snapshot.resources;
+        }
+        final List<RepositoryIndexer.Resource> published = ContentAddressing.publish(snapshot.resources.values());
+        final Map<String, RepositoryIndexer.Resource> resourcesByUrl = new HashMap<>(published.size() * 2);
+        for (final RepositoryIndexer.Resource rsc : published) {
+            resourcesByUrl.put(rsc.url, rsc);
+        }
+        return resourcesByUrl;
+    }
+
+    /**
+     * Index generation.
+     */
+    private static final class Generation {
+        final long increment;
+        /**
+         * URLs of resources added, updated or removed in this generation.
+         */
+        final Set<String> changedUrls;
+
+        Generation(final long increment, final Set<String> changedUrls) {
+            this.increment = increment;
+            this.changedUrls = changedUrls;
+        }
+    }
+}
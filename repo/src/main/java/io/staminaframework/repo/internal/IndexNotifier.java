@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Notify clients when a new repository index is committed, so that clients
+ * do not have to poll the index file.
+ * Clients may either wait for the next index (long polling), or subscribe to
+ * a stream of <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">server-sent events</a>.
+ * In both cases, the index increment is sent to clients, which may then
+ * download changes made since their own copy of the index.
+ * <p>
+ * Waiting clients are held using asynchronous requests: no thread is used
+ * until an index is committed. Notifications are written using non-blocking I/O,
+ * so that a slow client does not delay other clients.
+ *
+ * @author Stamina Framework developers
+ */
+final class IndexNotifier {
+    /**
+     * Delay in milliseconds before a client reconnects to an event stream.
+     */
+    private static final int RECONNECT_DELAY = 1000;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final long timeout;
+    private volatile boolean closed;
+
+    /**
+     * Create a notifier.
+     *
+     * @param timeout delay in milliseconds before a waiting request is completed:
+     *                clients are expected to send a new request
+     */
+    IndexNotifier(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Notify waiting clients of a new index.
+     *
+     * @param increment new index increment
+     */
+    void publish(long increment) {
+        for (final Subscriber subscriber : subscribers) {
+            subscriber.publish(increment);
+        }
+    }
+
+    /**
+     * Hold a request until a new index is committed.
+     * Response headers must be set before this method is called.
+     *
+     * @param asyncContext asynchronous context, started for the request
+     * @param since        index increment known to the client, or <code>-1</code> if unknown
+     * @param current      current index increment, or <code>-1</code> if no index is available
+     * @param stream       <code>true</code> to send an event stream, or <code>false</code> to
+     *                     complete the request once an index increment is sent
+     * @throws IOException if response output stream could not be retrieved
+     */
+    void subscribe(AsyncContext asyncContext, long since, long current, boolean stream) throws IOException {
+        asyncContext.setTimeout(timeout);
+        final Subscriber subscriber = new Subscriber(asyncContext, since, stream);
+        asyncContext.addListener(subscriber);
+        // An index committed while this subscriber is being registered is not missed:
+        // current increment is published to this subscriber once registered.
+        synchronized (subscriber) {
+            subscribers.add(subscriber);
+            subscriber.publish(current);
+            subscriber.out.setWriteListener(subscriber);
+        }
+        if (closed) {
+            // Notifier was closed while this subscriber was being registered.
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Complete all waiting requests.
+     * Requests received after this method is called are completed right away.
+     */
+    void close() {
+        closed = true;
+        for (final Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Get the number of clients waiting for a new index.
+     *
+     * @return subscriber count
+     */
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private final class Subscriber implements WriteListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final boolean stream;
+        private long sentIncrement;
+        private long pendingIncrement = -1;
+        private boolean writable;
+        private boolean started;
+        private boolean done;
+
+        Subscriber(final AsyncContext asyncContext, final long since, final boolean stream) throws IOException {
+            this.asyncContext = asyncContext;
+            this.out = asyncContext.getResponse().getOutputStream();
+            this.sentIncrement = since;
+            this.stream = stream;
+        }
+
+        synchronized void publish(long increment) {
+            // Increments are always increasing: only the latest one is sent to slow clients.
+            pendingIncrement = Math.max(pendingIncrement, increment);
+            if (writable) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    onError(e);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            writable = true;
+            write();
+        }
+
+        private void write() throws IOException {
+            if (done || !out.isReady()) {
+                return;
+            }
+            final StringBuilder buf = new StringBuilder(64);
+            if (stream && !started) {
+                buf.append("retry: ").append(RECONNECT_DELAY).append('\n');
+            }
+            started = true;
+            if (pendingIncrement != -1 && pendingIncrement != sentIncrement) {
+                sentIncrement = pendingIncrement;
+                if (stream) {
+                    buf.append("id: ").append(sentIncrement).append('\n')
+                            .append("event: index\n")
+                            .append("data: ").append(sentIncrement).append("\n\n");
+                } else {
+                    buf.append(sentIncrement).append('\n');
+                }
+            }
+            if (buf.length() == 0) {
+                return;
+            }
+            out.write(buf.toString().getBytes(StandardCharsets.US_ASCII));
+            if (!stream) {
+                finish();
+                asyncContext.complete();
+            } else if (out.isReady()) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            // Client is gone: it will subscribe again when it is back.
+            if (finish()) {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // Event streams are closed as well: clients reconnect right away,
+            // sending the last increment they received.
+            close();
+        }
+
+        synchronized void close() {
+            if (finish()) {
+                if (!stream) {
+                    ((HttpServletResponse) asyncContext.getResponse()).setStatus(HttpServletResponse.SC_NO_CONTENT);
+                }
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private synchronized boolean finish() {
+            subscribers.remove(this);
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Committed repository index, as served to clients.
+ * Instances are immutable: a new snapshot is created after each indexing run,
+ * and replaces the previous one at once.
+ *
+ * @author Stamina Framework developers
+ */
+final class IndexSnapshot {
+    /**
+     * Index file content.
+     */
+    final byte[] content;
+    /**
+     * Index increment, or <code>-1</code> if unknown.
+     */
+    final long increment;
+    /**
+     * Time when this index was committed.
+     */
+    final long lastModified;
+    /**
+     * Entity tag for index file content.
+     */
+    final String etag;
+    /**
+     * Index file content, compressed using gzip.
+     */
+    final byte[] compressedContent;
+    /**
+     * Entity tag for compressed index file content.
+     */
+    final String compressedEtag;
+    /**
+     * Binary index content, or <code>null</code> if not available.
+     */
+    final byte[] binaryContent;
+    /**
+     * Entity tag for binary index content.
+     */
+    final String binaryEtag;
+    /**
+     * Indexed resources, by artifact path (using <code>/</code> as separator).
+     */
+    final Map<String, RepositoryIndexer.Resource> resources;
+    /**
+     * Indexed resources, by checksum (when several artifacts have the same content,
+     * any of these is kept).
+     */
+    final Map<String, RepositoryIndexer.Resource> resourcesByChecksum;
+    /**
+     * Indexed resources, by symbolic name (resources sharing the same symbolic name
+     * are sorted by version).
+     */
+    private final Map<String, List<RepositoryIndexer.Resource>> resourcesBySymbolicName;
+
+    IndexSnapshot(final byte[] content, final byte[] compressedContent, final byte[] binaryContent,
+                  final long increment, final long lastModified,
+                  final Collection<RepositoryIndexer.Resource> resources) {
+        this.content = content;
+        this.increment = increment;
+        this.compressedContent = compressedContent;
+        this.binaryContent = binaryContent;
+        this.binaryEtag = binaryContent == null ? null : "\"" + sha256(binaryContent) + "\"";
+        this.lastModified = lastModified;
+        final String contentHash = sha256(content);
+        this.etag = "\"" + contentHash + "\"";
+        this.compressedEtag = "\"" + contentHash + "-gzip\"";
+
+        this.resources = toResourceMap(resources);
+        this.resourcesByChecksum = toChecksumMap(this.resources);
+        this.resourcesBySymbolicName = toSymbolicNameMap(this.resources);
+    }
+
+    private IndexSnapshot(final IndexSnapshot snapshot, final Map<String, RepositoryIndexer.Resource> resources) {
+        this.content = snapshot.content;
+        this.compressedContent = snapshot.compressedContent;
+        this.increment = snapshot.increment;
+        this.binaryContent = snapshot.binaryContent;
+        this.binaryEtag = snapshot.binaryEtag;
+        this.lastModified = snapshot.lastModified;
+        this.etag = snapshot.etag;
+        this.compressedEtag = snapshot.compressedEtag;
+        this.resources = resources;
+        this.resourcesByChecksum = toChecksumMap(resources);
+        this.resourcesBySymbolicName = toSymbolicNameMap(resources);
+    }
+
+    /**
+     * Find indexed resources by symbolic name and version.
+     * Resources with an invalid version are never found.
+     *
+     * @param symbolicName resource symbolic name
+     * @param versionRange version range, or <code>null</code> to match any version
+     * @return matching resources, sorted by version
+     */
+    List<RepositoryIndexer.Resource> find(String symbolicName, VersionRange versionRange) {
+        final List<RepositoryIndexer.Resource> candidates = resourcesBySymbolicName.get(symbolicName);
+        if (candidates == null) {
+            return Collections.emptyList();
+        }
+        final List<RepositoryIndexer.Resource> matches = new ArrayList<>(candidates.size());
+        for (final RepositoryIndexer.Resource rsc : candidates) {
+            final Version version;
+            try {
+                version = Version.parseVersion(rsc.version);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (versionRange == null || versionRange.includes(version)) {
+                matches.add(rsc);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Create a snapshot with the same index content, and updated resource metadata.
+     *
+     * @param resources indexed resources
+     * @return index snapshot
+     */
+    IndexSnapshot withResources(Collection<RepositoryIndexer.Resource> resources) {
+        return new IndexSnapshot(this, toResourceMap(resources));
+    }
+
+    /**
+     * Load a snapshot from an index file.
+     * The compressed copy of the index file is computed if it is missing,
+     * and the binary copy is read if it exists (index increment is read from this copy).
+     *
+     * @param indexFile index file
+     * @param resources indexed resources
+     * @return index snapshot
+     * @throws IOException if index file could not be read
+     */
+    static IndexSnapshot load(Path indexFile, Collection<RepositoryIndexer.Resource> resources) throws IOException {
+        final byte[] content = Files.readAllBytes(indexFile);
+        final Path compressedIndexFile = RepositoryIndexer.compressedIndexFile(indexFile);
+        final byte[] compressedContent;
+        if (Files.isRegularFile(compressedIndexFile)) {
+            compressedContent = Files.readAllBytes(compressedIndexFile);
+        } else {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream(content.length / 4 + 64);
+            try (final GZIPOutputStream out = new GZIPOutputStream(buf)) {
+                out.write(content);
+            }
+            compressedContent = buf.toByteArray();
+        }
+        final Path binaryIndexFile = BinaryIndex.binaryIndexFile(indexFile);
+        byte[] binaryContent = null;
+        long increment = -1;
+        if (Files.isRegularFile(binaryIndexFile)) {
+            binaryContent = Files.readAllBytes(binaryIndexFile);
+            increment = new BinaryIndex(ByteBuffer.wrap(binaryContent)).increment();
+        }
+        return new IndexSnapshot(content, compressedContent, binaryContent, increment,
+                Files.getLastModifiedTime(indexFile).toMillis(), resources);
+    }
+
+    private static Map<String, RepositoryIndexer.Resource> toResourceMap(
+            Collection<RepositoryIndexer.Resource> resources) {
+        final Map<String, RepositoryIndexer.Resource> resourcesByPath = new HashMap<>(resources.size() * 2);
+        for (final RepositoryIndexer.Resource rsc : resources) {
+            resourcesByPath.put(rsc.url.replace(File.separatorChar, '/'), rsc);
+        }
+        return Collections.unmodifiableMap(resourcesByPath);
+    }
+
+    private static Map<String, RepositoryIndexer.Resource> toChecksumMap(
+            Map<String, RepositoryIndexer.Resource> resources) {
+        final Map<String, RepositoryIndexer.Resource> resourcesByChecksum = new HashMap<>(resources.size() * 2);
+        for (final RepositoryIndexer.Resource rsc : resources.values()) {
+            resourcesByChecksum.put(rsc.checksum, rsc);
+        }
+        return Collections.unmodifiableMap(resourcesByChecksum);
+    }
+
+    private static Map<String, List<RepositoryIndexer.Resource>> toSymbolicNameMap(
+            Map<String, RepositoryIndexer.Resource> resources) {
+        final Map<String, List<RepositoryIndexer.Resource>> resourcesBySymbolicName =
+                new HashMap<>(resources.size() * 2);
+        for (final RepositoryIndexer.Resource rsc : resources.values()) {
+            resourcesBySymbolicName.computeIfAbsent(rsc.symbolicName, k -> new ArrayList<>(1)).add(rsc);
+        }
+        for (final List<RepositoryIndexer.Resource> sameNameResources : resourcesBySymbolicName.values()) {
+            sameNameResources.sort(RepositoryIndexer.RESOURCE_ORDER);
+        }
+        return resourcesBySymbolicName;
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return RepositoryIndexer.bytesToHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to compute checksums using SHA-256", e);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * This component schedules indexing runs for every repository.
+ * A limited number of repositories are indexed at the same time, sharing a read budget.
+ * Queued repositories are indexed in turn, although small updates are indexed first,
+ * so that a large repository being fully scanned does not delay small changes
+ * made to other repositories.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = IndexingScheduler.class, configurationPid = "io.staminaframework.repo.scheduler")
+public class IndexingScheduler {
+    /**
+     * Small updates are not run ahead of a repository which has been waiting for this delay.
+     */
+    private static final long MAX_PRIORITY_DELAY = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Component configuration.
+     *
+     * @author Stamina Framework developers
+     */
+    public @interface Config {
+        /**
+         * Maximum number of repositories indexed at the same time.
+         */
+        int maxConcurrentRuns() default 2;
+
+        /**
+         * Maximum number of bytes read per second by all indexing runs
+         * (set to zero for no limit).
+         */
+        long indexRate() default 0;
+
+        /**
+         * Indexing runs with fewer changed paths than this threshold are run first.
+         */
+        int smallUpdateThreshold() default 64;
+    }
+
+    @Reference
+    private LogService logService;
+    private ScheduledExecutorService timer;
+    private ExecutorService executor;
+    private IoBudget ioBudget;
+    private int maxConcurrentRuns;
+    private int smallUpdateThreshold;
+    private final Object jobsLock = new Object();
+    private final Map<String, Job> queuedJobs = new LinkedHashMap<>(16);
+    private final Set<String> runningJobs = new HashSet<>(4);
+    private boolean stopped;
+
+    @Activate
+    void activate(Config config) {
+        maxConcurrentRuns = Math.max(1, config.maxConcurrentRuns());
+        smallUpdateThreshold = Math.max(0, config.smallUpdateThreshold());
+        ioBudget = new IoBudget(config.indexRate());
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Repository Scheduler");
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        });
+        executor = Executors.newFixedThreadPool(maxConcurrentRuns, r -> {
+            final Thread t = new Thread(r, "Stamina Repository Indexer");
+            t.setDaemon(false);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        });
+        synchronized (jobsLock) {
+            stopped = false;
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        synchronized (jobsLock) {
+            stopped = true;
+            queuedJobs.clear();
+        }
+        // Repository managers were deactivated first: no new task is expected.
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1000, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) {
+        }
+        timer = null;
+        executor = null;
+    }
+
+    /**
+     * Get read budget shared by indexing runs.
+     *
+     * @return read budget
+     */
+    IoBudget getIoBudget() {
+        return ioBudget;
+    }
+
+    /**
+     * Schedule a task on the shared timer thread.
+     * Tasks must be short: indexing runs are submitted
+     * using {@link #submit(String, IntSupplier, Runnable)}.
+     *
+     * @param task  task to run
+     * @param delay delay before running this task
+     * @param unit  delay unit
+     * @return task handle
+     */
+    Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return timer.schedule(task, delay, unit);
+    }
+
+    /**
+     * Submit an indexing run for a repository.
+     * A single run is queued for each repository: if a run is already queued,
+     * this call has no effect. A repository is never indexed twice at the same time:
+     * if this repository is being indexed, this run is started once the current one is done.
+     *
+     * @param repositoryId   repository identifier
+     * @param pendingChanges number of changed paths to index, or <code>-1</code>
+     *                       if the whole repository must be scanned
+     * @param task           indexing task
+     */
+    void submit(String repositoryId, IntSupplier pendingChanges, Runnable task) {
+        synchronized (jobsLock) {
+            if (stopped || queuedJobs.containsKey(repositoryId)) {
+                return;
+            }
+            queuedJobs.put(repositoryId, new Job(repositoryId, pendingChanges, task));
+            startJobs();
+        }
+    }
+
+    /**
+     * Cancel queued indexing run for a repository,
+     * waiting for the current run to complete.
+     *
+     * @param repositoryId repository identifier
+     */
+    void cancel(String repositoryId) {
+        synchronized (jobsLock) {
+            queuedJobs.remove(repositoryId);
+            try {
+                while (runningJobs.contains(repositoryId)) {
+                    jobsLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startJobs() {
+        while (runningJobs.size() < maxConcurrentRuns) {
+            final Job job = nextJob();
+            if (job == null) {
+                break;
+            }
+            queuedJobs.remove(job.repositoryId);
+            runningJobs.add(job.repositoryId);
+            executor.execute(() -> run(job));
+        }
+    }
+
+    /**
+     * Select next indexing run: the first small update, unless the oldest
+     * queued run has been waiting for too long, or else the oldest queued run.
+     */
+    private Job nextJob() {
+        Job oldest = null;
+        final long now = System.nanoTime();
+        for (final Iterator<Job> i = queuedJobs.values().iterator(); i.hasNext(); ) {
+            final Job job = i.next();
+            if (runningJobs.contains(job.repositoryId)) {
+                continue;
+            }
+            if (oldest == null) {
+                oldest = job;
+                if (now - oldest.submitTime > MAX_PRIORITY_DELAY) {
+                    break;
+                }
+            }
+            final int changes = job.pendingChanges.getAsInt();
+            if (changes >= 0 && changes < smallUpdateThreshold) {
+                return job;
+            }
+        }
+        return oldest;
+    }
+
+    private void run(Job job) {
+        try {
+            job.task.run();
+        } catch (RuntimeException e) {
+            logService.log(LogService.LOG_ERROR, "Error while indexing repository: " + job.repositoryId, e);
+        } finally {
+            synchronized (jobsLock) {
+                runningJobs.remove(job.repositoryId);
+                jobsLock.notifyAll();
+                if (!stopped) {
+                    startJobs();
+                }
+            }
+        }
+    }
+
+    private static final class Job {
+        final String repositoryId;
+        final IntSupplier pendingChanges;
+        final Runnable task;
+        final long submitTime = System.nanoTime();
+
+        Job(final String repositoryId, final IntSupplier pendingChanges, final Runnable task) {
+            this.repositoryId = repositoryId;
+            this.pendingChanges = pendingChanges;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read budget shared by indexing runs and artifact verification, expressed in bytes per second.
+ * Callers are charged after reading: they wait until the budget allows
+ * the bytes they read, so that the overall read rate does not exceed the budget.
+ *
+ * @author Stamina Framework developers
+ */
+final class IoBudget {
+    /**
+     * Unused budget is kept for this duration at most,
+     * so that an idle period does not allow a burst of reads.
+     */
+    private static final long MAX_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    /**
+     * Time when all charged bytes are allowed.
+     */
+    private long nextFreeTime = System.nanoTime();
+
+    IoBudget(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Charge bytes read, waiting if the budget is exceeded.
+     *
+     * @param bytes number of bytes read
+     * @throws InterruptedIOException if current thread was interrupted while waiting
+     */
+    void charge(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        final long waitTime;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            nextFreeTime = Math.max(nextFreeTime, now - MAX_BURST_NANOS)
+                    + (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            waitTime = nextFreeTime - now;
+        }
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for read budget");
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Directive;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Extract capabilities and requirements from a bundle manifest,
+ * so that resolvers may work off the repository index without
+ * downloading bundles.
+ *
+ * @author Stamina Framework developers
+ */
+final class ManifestCapabilities {
+    private static final String PACKAGE_NAMESPACE = "osgi.wiring.package";
+    private static final String BUNDLE_NAMESPACE = "osgi.wiring.bundle";
+    private static final String HOST_NAMESPACE = "osgi.wiring.host";
+    private static final String EE_NAMESPACE = "osgi.ee";
+    private static final String BUNDLE_SYMBOLICNAME_ATTRIBUTE = "bundle-symbolic-name";
+
+    private ManifestCapabilities() {
+    }
+
+    /**
+     * Set capabilities and requirements for a bundle resource.
+     * Resource symbolic name and version must be set.
+     *
+     * @param man bundle manifest
+     * @param rsc bundle resource
+     * @throws IllegalArgumentException if a manifest header is invalid
+     */
+    static void parseBundle(Manifest man, RepositoryIndexer.Resource rsc) {
+        final Attributes headers = man.getMainAttributes();
+        final List<Capability> caps = new ArrayList<>(8);
+        final List<Capability> reqs = new ArrayList<>(8);
+        final String bundleVersion = Version.parseVersion(rsc.version).toString();
+
+        if (rsc.type == RepositoryIndexer.Resource.Type.BUNDLE) {
+            final Clause bsn = Parser.parseHeader(headers.getValue(Constants.BUNDLE_SYMBOLICNAME))[0];
+            final Capability bundleCap = new Capability(BUNDLE_NAMESPACE)
+                    .attribute(BUNDLE_NAMESPACE, rsc.symbolicName)
+                    .attribute(Constants.BUNDLE_VERSION_ATTRIBUTE, bundleVersion, "Version");
+            copyAttributes(bsn, bundleCap);
+            copyDirectives(bsn, bundleCap);
+            caps.add(bundleCap);
+
+            if (!"never".equals(bsn.getDirective(Constants.FRAGMENT_ATTACHMENT_DIRECTIVE))) {
+                final Capability hostCap = new Capability(HOST_NAMESPACE)
+                        .attribute(HOST_NAMESPACE, rsc.symbolicName)
+                        .attribute(Constants.BUNDLE_VERSION_ATTRIBUTE, bundleVersion, "Version");
+                copyAttributes(bsn, hostCap);
+                copyDirectives(bsn, hostCap);
+                caps.add(hostCap);
+            }
+        } else {
+            for (final Clause host : Parser.parseHeader(headers.getValue(Constants.FRAGMENT_HOST))) {
+                final List<String> filter = new ArrayList<>(2);
+                filter.add(equalsFilter(HOST_NAMESPACE, host.getName()));
+                addVersionRange(filter, Constants.BUNDLE_VERSION_ATTRIBUTE,
+                        host.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE));
+                reqs.add(new Capability(HOST_NAMESPACE)
+                        .directive(Constants.FILTER_DIRECTIVE, and(filter)));
+            }
+        }
+
+        for (final Clause exp : Parser.parseHeader(headers.getValue(Constants.EXPORT_PACKAGE))) {
+            String version = exp.getAttribute(Constants.VERSION_ATTRIBUTE);
+            if (version == null) {
+                version = exp.getAttribute(Constants.PACKAGE_SPECIFICATION_VERSION);
+            }
+            final Capability cap = new Capability(PACKAGE_NAMESPACE)
+                    .attribute(PACKAGE_NAMESPACE, exp.getName())
+                    .attribute(Constants.VERSION_ATTRIBUTE,
+                            Version.parseVersion(version).toString(), "Version");
+            for (final Attribute attr : exp.getAttributes()) {
+                final String name = attr.getName();
+                if (!Constants.VERSION_ATTRIBUTE.equals(name)
+                        && !Constants.PACKAGE_SPECIFICATION_VERSION.equals(name)) {
+                    addAttribute(cap, name, attr.getValue());
+                }
+            }
+            cap.attribute(BUNDLE_SYMBOLICNAME_ATTRIBUTE, rsc.symbolicName)
+                    .attribute(Constants.BUNDLE_VERSION_ATTRIBUTE, bundleVersion, "Version");
+            copyDirectives(exp, cap);
+            caps.add(cap);
+        }
+
+        for (final Clause imp : Parser.parseHeader(headers.getValue(Constants.IMPORT_PACKAGE))) {
+            final List<String> filter = new ArrayList<>(2);
+            filter.add(equalsFilter(PACKAGE_NAMESPACE, imp.getName()));
+            String version = imp.getAttribute(Constants.VERSION_ATTRIBUTE);
+            if (version == null) {
+                version = imp.getAttribute(Constants.PACKAGE_SPECIFICATION_VERSION);
+            }
+            addVersionRange(filter, Constants.VERSION_ATTRIBUTE, version);
+            for (final Attribute attr : imp.getAttributes()) {
+                final String name = attr.getName();
+                if (Constants.BUNDLE_VERSION_ATTRIBUTE.equals(name)) {
+                    addVersionRange(filter, name, attr.getValue());
+                } else if (!Constants.VERSION_ATTRIBUTE.equals(name)
+                        && !Constants.PACKAGE_SPECIFICATION_VERSION.equals(name)) {
+                    filter.add(equalsFilter(name, attr.getValue()));
+                }
+            }
+            reqs.add(newRequirement(PACKAGE_NAMESPACE, and(filter), imp));
+        }
+
+        for (final Clause req : Parser.parseHeader(headers.getValue(Constants.REQUIRE_BUNDLE))) {
+            final List<String> filter = new ArrayList<>(2);
+            filter.add(equalsFilter(BUNDLE_NAMESPACE, req.getName()));
+            addVersionRange(filter, Constants.BUNDLE_VERSION_ATTRIBUTE,
+                    req.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE));
+            reqs.add(newRequirement(BUNDLE_NAMESPACE, and(filter), req));
+        }
+
+        boolean eeRequired = false;
+        for (final Clause prov : Parser.parseHeader(headers.getValue(Constants.PROVIDE_CAPABILITY))) {
+            final Capability cap = new Capability(prov.getName());
+            copyAttributes(prov, cap);
+            copyDirectives(prov, cap);
+            caps.add(cap);
+        }
+        for (final Clause req : Parser.parseHeader(headers.getValue(Constants.REQUIRE_CAPABILITY))) {
+            final Capability cap = new Capability(req.getName());
+            copyAttributes(req, cap);
+            copyDirectives(req, cap);
+            reqs.add(cap);
+            eeRequired |= EE_NAMESPACE.equals(req.getName());
+        }
+
+        // Legacy execution environment header is translated to a requirement,
+        // unless this bundle already declares one.
+        final String bree = headers.getValue("Bundle-RequiredExecutionEnvironment");
+        if (bree != null && !eeRequired) {
+            final String filter = toExecutionEnvironmentFilter(Parser.parseHeader(bree));
+            if (filter != null) {
+                reqs.add(new Capability(EE_NAMESPACE).directive(Constants.FILTER_DIRECTIVE, filter));
+            }
+        }
+
+        rsc.capabilities = caps;
+        rsc.requirements = reqs;
+    }
+
+    private static Capability newRequirement(String namespace, String filter, Clause clause) {
+        final Capability req = new Capability(namespace).directive(Constants.FILTER_DIRECTIVE, filter);
+        final String resolution = clause.getDirective(Constants.RESOLUTION_DIRECTIVE);
+        if (resolution != null) {
+            req.directive(Constants.RESOLUTION_DIRECTIVE, resolution);
+        }
+        return req;
+    }
+
+    private static void copyAttributes(Clause clause, Capability cap) {
+        for (final Attribute attr : clause.getAttributes()) {
+            addAttribute(cap, attr.getName(), attr.getValue());
+        }
+    }
+
+    private static void copyDirectives(Clause clause, Capability cap) {
+        for (final Directive dir : clause.getDirectives()) {
+            cap.directive(dir.getName(), dir.getValue());
+        }
+    }
+
+    /**
+     * Add an attribute, which may be typed using the <code>name:Type=value</code> syntax.
+     */
+    private static void addAttribute(Capability cap, String name, String value) {
+        final int i = name.indexOf(':');
+        if (i == -1) {
+            cap.attribute(name, value);
+        } else {
+            final String type = name.substring(i + 1).replaceAll("\\s", "");
+            cap.attribute(name.substring(0, i).trim(), value, "String".equals(type) ? null : type);
+        }
+    }
+
+    private static void addVersionRange(List<String> filter, String attr, String range) {
+        if (range == null) {
+            return;
+        }
+        final VersionRange vr = VersionRange.valueOf(range);
+        if (vr.getRight() == null && Version.emptyVersion.equals(vr.getLeft())) {
+            // Any version matches.
+            return;
+        }
+        filter.add(vr.toFilterString(attr));
+    }
+
+    private static String equalsFilter(String attr, String value) {
+        return "(" + attr + "=" + escapeFilterValue(value) + ")";
+    }
+
+    private static String and(List<String> filter) {
+        if (filter.size() == 1) {
+            return filter.get(0);
+        }
+        final StringBuilder buf = new StringBuilder(96).append("(&");
+        for (final String f : filter) {
+            buf.append(f);
+        }
+        return buf.append(')').toString();
+    }
+
+    private static String toExecutionEnvironmentFilter(Clause[] clauses) {
+        final List<String> filter = new ArrayList<>(clauses.length);
+        for (final Clause clause : clauses) {
+            final String ee = clause.getName();
+            final int i = ee.lastIndexOf('-');
+            if (i == -1) {
+                continue;
+            }
+            String name = ee.substring(0, i);
+            final Version version;
+            try {
+                version = Version.parseVersion(ee.substring(i + 1));
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if ("J2SE".equals(name)) {
+                name = "JavaSE";
+            }
+            filter.add("(&" + equalsFilter(EE_NAMESPACE, name) + "(version=" + version + "))");
+        }
+        if (filter.isEmpty()) {
+            return null;
+        }
+        return filter.size() == 1 ? filter.get(0) : "(|" + String.join("", filter) + ")";
+    }
+
+    private static String escapeFilterValue(String value) {
+        final StringBuilder buf = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+}
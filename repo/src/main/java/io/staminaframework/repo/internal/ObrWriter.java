@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write OBR index files.
+ * Resources are streamed to the index file in the order they are given,
+ * so that index content only depends on repository content.
+ *
+ * @author Stamina Framework developers
+ */
+final class ObrWriter {
+    /**
+     * Version of index content layout, which is part of index fingerprints:
+     * this value must be updated when index content changes for the same resources.
+     */
+    private static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 65536;
+    private static final String REPOSITORY_NAMESPACE = "http://www.osgi.org/xmlns/repository/v1.0.0";
+    private static final String DELTA_NAMESPACE = "http://staminaframework.io/xmlns/repository-delta/v1.0.0";
+    private static final byte[] ROOT_END_TAG = "</repository>".getBytes(StandardCharsets.UTF_8);
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    private ObrWriter() {
+    }
+
+    /**
+     * Compute a fingerprint for index content.
+     * Two indexes with the same fingerprint only differ by their increment.
+     *
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param resources indexed resources, sorted
+     * @return index fingerprint
+     */
+    static String fingerprint(String repoName, List<RepositoryIndexer.Resource> resources) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to compute checksums using SHA-256", e);
+        }
+        final StringBuilder buf = new StringBuilder(256);
+        buf.append(FORMAT_VERSION).append('\n').append(repoName == null ? "" : repoName).append('\n');
+        for (final RepositoryIndexer.Resource rsc : resources) {
+            // Capabilities are not part of the fingerprint, since these are
+            // derived from artifact content, which is identified by its checksum.
+            buf.append(rsc.url).append('\t').append(rsc.checksum).append('\t')
+                    .append(rsc.fileSize).append('\t').append(rsc.type.name()).append('\t')
+                    .append(rsc.symbolicName).append('\t').append(rsc.version).append('\n');
+            md.update(buf.toString().getBytes(StandardCharsets.UTF_8));
+            buf.setLength(0);
+        }
+        return RepositoryIndexer.bytesToHex(md.digest());
+    }
+
+    /**
+     * Write an index file.
+     * A compressed copy of the index file is written at the same time,
+     * so that clients may download it without compressing it for every request.
+     *
+     * @param indexFile index file
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param increment index increment
+     * @param resources indexed resources, sorted (resources are only iterated once)
+     * @throws IOException if index file could not be written
+     */
+    static void write(Path indexFile, String repoName, long increment,
+                      Iterable<RepositoryIndexer.Resource> resources) throws IOException {
+        try (final OutputStream fileOut = Files.newOutputStream(indexFile);
+             final OutputStream compressedFileOut = new GZIPOutputStream(
+                     Files.newOutputStream(RepositoryIndexer.compressedIndexFile(indexFile)), BUFFER_SIZE) {
+                 {
+                     def.setLevel(Deflater.BEST_COMPRESSION);
+                 }
+             };
+             final OutputStream out = new BufferedOutputStream(
+                     new TeeOutputStream(fileOut, compressedFileOut), BUFFER_SIZE)) {
+            write(out, repoName, increment, resources);
+        }
+    }
+
+    /**
+     * Get the bytes written at the beginning of an index file, before any resource:
+     * index files with the same resources only differ by their header.
+     *
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param increment index increment
+     * @return index header, including the start tag of the root element
+     * @throws IOException if index header could not be written
+     */
+    static byte[] header(String repoName, long increment) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(out, repoName, increment, Collections.emptyList());
+        final byte[] emptyIndex = out.toByteArray();
+        return Arrays.copyOf(emptyIndex, emptyIndex.length - ROOT_END_TAG.length);
+    }
+
+    /**
+     * Write index content to a stream.
+     *
+     * @param out       output stream (which is not closed)
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param increment index increment
+     * @param resources indexed resources, sorted (resources are only iterated once)
+     * @throws IOException if index content could not be written
+     */
+    static void write(OutputStream out, String repoName, long increment,
+                      Iterable<RepositoryIndexer.Resource> resources) throws IOException {
+        XMLStreamWriter xml = null;
+        try {
+            xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement("repository");
+            xml.writeDefaultNamespace(REPOSITORY_NAMESPACE);
+            xml.writeAttribute("increment", String.valueOf(increment));
+            if (repoName != null && repoName.length() != 0) {
+                xml.writeAttribute("name", repoName);
+            }
+
+            for (final RepositoryIndexer.Resource rsc : resources) {
+                writeResource(xml, rsc, false);
+            }
+
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to write repository index file", e);
+        } finally {
+            if (xml != null) {
+                try {
+                    xml.close();
+                } catch (XMLStreamException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write changes made to an index since a previous increment.
+     * Updated resources are written as in index files, while removed resources are
+     * listed using their URL:
+     * <pre>
+     * &lt;delta xmlns="http://staminaframework.io/xmlns/repository-delta/v1.0.0"
+     *        since="..." increment="..."&gt;
+     *   &lt;resource xmlns="http://www.osgi.org/xmlns/repository/v1.0.0"&gt;...&lt;/resource&gt;
+     *   &lt;removed url="..."/&gt;
+     * &lt;/delta&gt;
+     * </pre>
+     *
+     * @param out       output stream
+     * @param since     previous index increment
+     * @param increment current index increment
+     * @param updated   added or updated resources, sorted
+     * @param removed   URLs of removed resources
+     * @throws IOException if changes could not be written
+     */
+    static void writeDelta(OutputStream out, long since, long increment,
+                           List<RepositoryIndexer.Resource> updated, Collection<String> removed) throws IOException {
+        XMLStreamWriter xml = null;
+        try {
+            xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement("delta");
+            xml.writeDefaultNamespace(DELTA_NAMESPACE);
+            xml.writeAttribute("since", String.valueOf(since));
+            xml.writeAttribute("increment", String.valueOf(increment));
+            for (final RepositoryIndexer.Resource rsc : updated) {
+                writeResource(xml, rsc, true);
+            }
+            for (final String url : removed) {
+                xml.writeEmptyElement("removed");
+                xml.writeAttribute("url", url);
+            }
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to write repository index changes", e);
+        } finally {
+            if (xml != null) {
+                try {
+                    xml.close();
+                } catch (XMLStreamException ignore) {
+                }
+            }
+        }
+    }
+
+    private static void writeResource(XMLStreamWriter xml, RepositoryIndexer.Resource rsc,
+                                      boolean declareNamespace) throws XMLStreamException {
+        xml.writeStartElement("resource");
+        if (declareNamespace) {
+            xml.writeDefaultNamespace(REPOSITORY_NAMESPACE);
+        }
+        xml.writeStartElement("capability");
+        xml.writeAttribute("namespace", "osgi.identity");
+        writeAttribute(xml, "osgi.identity", null, rsc.symbolicName);
+        writeAttribute(xml, "type", null, rsc.type.osgiType);
+        writeAttribute(xml, "version", "Version", rsc.version);
+        xml.writeEndElement();
+
+        xml.writeStartElement("capability");
+        xml.writeAttribute("namespace", "osgi.content");
+        writeAttribute(xml, "osgi.content", null, rsc.checksum);
+        writeAttribute(xml, "url", null, rsc.url);
+        writeAttribute(xml, "size", "Long", String.valueOf(rsc.fileSize));
+        xml.writeEndElement();
+
+        for (final Capability cap : rsc.capabilities) {
+            writeCapability(xml, "capability", cap);
+        }
+        for (final Capability req : rsc.requirements) {
+            writeCapability(xml, "requirement", req);
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeCapability(XMLStreamWriter xml, String element,
+                                        Capability cap) throws XMLStreamException {
+        xml.writeStartElement(element);
+        xml.writeAttribute("namespace", cap.namespace);
+        for (final Map.Entry<String, String> e : cap.directives.entrySet()) {
+            xml.writeEmptyElement("directive");
+            xml.writeAttribute("name", e.getKey());
+            xml.writeAttribute("value", e.getValue());
+        }
+        for (final Map.Entry<String, Capability.Attribute> e : cap.attributes.entrySet()) {
+            writeAttribute(xml, e.getKey(), e.getValue().type, e.getValue().value);
+        }
+        xml.writeEndElement();
+    }
+
+    private static void writeAttribute(XMLStreamWriter xml, String name, String type,
+                                       String value) throws XMLStreamException {
+        xml.writeEmptyElement("attribute");
+        xml.writeAttribute("name", name);
+        if (type != null) {
+            xml.writeAttribute("type", type);
+        }
+        xml.writeAttribute("value", value);
+    }
+
+    /**
+     * Output stream writing content to two streams.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream out1;
+        private final OutputStream out2;
+
+        TeeOutputStream(final OutputStream out1, final OutputStream out2) {
+            this.out1 = out1;
+            this.out2 = out2;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out1.write(b);
+            out2.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out1.write(b, off, len);
+            out2.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out1.flush();
+            out2.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out1.close();
+            } finally {
+                out2.close();
+            }
+        }
+    }
+}
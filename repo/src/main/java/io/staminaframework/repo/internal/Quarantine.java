@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Artifacts whose content does not match their indexed checksum.
+ * Quarantined artifacts are neither indexed nor served.
+ * An artifact is released from quarantine as soon as it is replaced
+ * (its size or modification time is changed): it is then indexed again.
+ *
+ * @author Stamina Framework developers
+ */
+final class Quarantine {
+    private static final int MAGIC = 0x53545151;
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(4);
+
+    /**
+     * Quarantine an artifact.
+     *
+     * @param rsc artifact, as indexed
+     */
+    void add(RepositoryIndexer.Resource rsc) {
+        entries.put(rsc.url, new Entry(rsc.fileSize, rsc.lastModified));
+    }
+
+    /**
+     * Check if an artifact is quarantined.
+     *
+     * @param url          artifact path, relative to the repository directory
+     * @param size         current artifact size
+     * @param lastModified current artifact modification time
+     * @return <code>true</code> if this artifact must not be indexed nor served
+     */
+    boolean contains(String url, long size, long lastModified) {
+        final Entry e = entries.get(url);
+        if (e == null) {
+            return false;
+        }
+        if (e.size == size && e.lastModified == lastModified) {
+            return true;
+        }
+        // Artifact was replaced.
+        entries.remove(url, e);
+        return false;
+    }
+
+    /**
+     * Release artifacts which were removed from the repository.
+     *
+     * @param urls paths of artifacts found in the repository
+     * @return <code>true</code> if some artifacts were released
+     */
+    boolean retainAll(Set<String> urls) {
+        return entries.keySet().retainAll(urls);
+    }
+
+    /**
+     * Get quarantined artifacts.
+     *
+     * @return paths of quarantined artifacts, relative to the repository directory
+     */
+    Set<String> urls() {
+        return Collections.unmodifiableSet(new TreeSet<>(entries.keySet()));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Load quarantined artifacts from a file.
+     * Nothing is loaded if the file does not exist or if it cannot be read.
+     *
+     * @param file quarantine file
+     */
+    void load(Path file) {
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        try (final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            final int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; ++i) {
+                final String url = in.readUTF();
+                entries.put(url, new Entry(in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            // Artifacts will be verified again.
+            entries.clear();
+        }
+    }
+
+    /**
+     * Store quarantined artifacts to a file.
+     *
+     * @param file quarantine file
+     * @throws IOException if file could not be written
+     */
+    synchronized void store(Path file) throws IOException {
+        // Stores are serialized, so that the latest content is written last.
+        // Each store writes its own temporary file, which is then atomically moved.
+        final Path tmpFile = Files.createTempFile(
+                file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        boolean written = false;
+        try {
+            try (final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                final Map<String, Entry> snapshot = new HashMap<>(entries);
+                out.writeInt(snapshot.size());
+                for (final Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().size);
+                    out.writeLong(e.getValue().lastModified);
+                }
+            }
+            Files.move(tmpFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+
+        Entry(final long size, final long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -20,42 +20,177 @@ import io.staminaframework.runtime.command.Command;
 import io.staminaframework.runtime.command.CommandConstants;
 import org.osgi.service.component.annotations.Component;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Index a repository.
+ * Artifact metadata may be kept in a cache file between runs,
+ * so that only new or updated artifacts are read.
  *
  * @author Stamina Framework developers
  */
 @Component(service = Command.class, property = CommandConstants.COMMAND + "=repo:index")
 public class RepoIndexCommand implements Command {
+    /**
+     * Minimum delay in milliseconds between two progress reports.
+     */
+    private static final long PROGRESS_INTERVAL = 1000;
+    /**
+     * Maximum number of resources kept in memory when indexing in streaming mode.
+     */
+    private static final int STREAMING_BUFFER_SIZE = 4096;
+
     @Override
     public void help(PrintStream out) {
         out.println("Index a repository.");
-        out.println("Usage: repo:index [--name <repository name>] <directory>");
+        out.println("Usage: repo:index [--name <repository name>] [--threads <thread count>] [--cache <cache file>]");
+        out.println("                  [--content-addressed] [--check | --streaming] <directory>");
+        out.println("  --cache      reuse artifact metadata from a previous run (the cache file is updated)");
+        out.println("  --check      verify the existing index against repository content, without writing it:");
+        out.println("               this command fails if the index is out of date");
+        out.println("  --streaming  index using a bounded amount of memory, whatever the repository size");
+        out.println("               (no cache is used)");
     }
 
     @Override
     public boolean execute(Context context) throws Exception {
         Path repoDir = null;
         String repoName = null;
+        int threads = 0;
+        boolean contentAddressed = false;
+        Path cacheFile = null;
+        boolean check = false;
+        boolean streaming = false;
 
-        if (context.arguments().length == 3 && "--name".equals(context.arguments()[0])) {
-            repoName = context.arguments()[1];
-            repoDir = FileSystems.getDefault().getPath(context.arguments()[2]);
-        } else if (context.arguments().length == 1) {
-            repoDir = FileSystems.getDefault().getPath(context.arguments()[0]);
-        } else {
+        final String[] args = context.arguments();
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            if ("--name".equals(arg) && i + 1 < args.length) {
+                repoName = args[++i];
+            } else if ("--threads".equals(arg) && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    context.err().println("Invalid thread count: " + args[i]);
+                    return false;
+                }
+            } else if ("--cache".equals(arg) && i + 1 < args.length) {
+                cacheFile = FileSystems.getDefault().getPath(args[++i]);
+            } else if ("--content-addressed".equals(arg)) {
+                contentAddressed = true;
+            } else if ("--check".equals(arg)) {
+                check = true;
+            } else if ("--streaming".equals(arg)) {
+                streaming = true;
+            } else if (repoDir == null && !arg.startsWith("--")) {
+                repoDir = FileSystems.getDefault().getPath(arg);
+            } else {
+                repoDir = null;
+                break;
+            }
+        }
+        if (repoDir == null) {
             help(context.out());
             return false;
         }
+        if (streaming && (check || cacheFile != null)) {
+            context.err().println("Streaming mode cannot be used with --check or --cache");
+            return false;
+        }
 
-        context.out().println("Indexing repository: " + repoDir);
+        final PrintStream out = context.out();
         final Path indexFile = repoDir.resolve("obr.xml");
-        new RepositoryIndexer().indexRepository(repoDir, indexFile, repoName);
+        final RepositoryIndexer indexer = new RepositoryIndexer(threads, contentAddressed);
+        final long start = System.nanoTime();
+        indexer.setProgressListener(new ProgressPrinter(out, start));
+
+        if (streaming) {
+            out.println("Indexing repository (streaming): " + repoDir);
+            indexer.indexRepositoryStreaming(repoDir, indexFile, repoName, STREAMING_BUFFER_SIZE);
+            printSummary(out, indexer, start);
+        } else if (check) {
+            final IndexCache cache = IndexCache.load(cacheFile);
+            out.println("Checking repository index: " + repoDir);
+            final List<String> differences = indexer.checkRepository(repoDir, indexFile, repoName, cache);
+            storeCache(context, cache, cacheFile);
+            printSummary(out, indexer, start);
+            for (final String difference : differences) {
+                context.err().println(difference);
+            }
+            if (!differences.isEmpty()) {
+                // Command must fail, so that a build checking the index fails as well.
+                throw new IllegalStateException("Repository index is out of date: " + repoDir);
+            }
+            out.println("Repository index is up-to-date");
+        } else {
+            final IndexCache cache = IndexCache.load(cacheFile);
+            out.println("Indexing repository: " + repoDir);
+            indexer.indexRepository(repoDir, indexFile, repoName, cache);
+            storeCache(context, cache, cacheFile);
+            printSummary(out, indexer, start);
+        }
 
         return false;
     }
+
+    private static void storeCache(Context context, IndexCache cache, Path cacheFile) {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            cache.store(cacheFile);
+        } catch (IOException e) {
+            context.err().println("Failed to write cache file: " + cacheFile + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private static void printSummary(PrintStream out, RepositoryIndexer indexer, long start) {
+        final long elapsed = System.nanoTime() - start;
+        out.println(String.format(Locale.ROOT, "%d artifacts read (%s, %s), %d found in cache, in %.1f s",
+                indexer.getFilesHashed(), formatBytes(indexer.getBytesHashed()),
+                formatRate(indexer.getBytesHashed(), elapsed), indexer.getCacheHits(),
+                elapsed / (double) TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private static String formatBytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024d * 1024));
+    }
+
+    private static String formatRate(long bytes, long elapsedNanos) {
+        final double seconds = Math.max(1, elapsedNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        return String.format(Locale.ROOT, "%.1f MiB/s", bytes / (1024d * 1024) / seconds);
+    }
+
+    /**
+     * Print indexing progress, at most once every {@link #PROGRESS_INTERVAL} milliseconds.
+     */
+    private static final class ProgressPrinter implements RepositoryIndexer.ProgressListener {
+        private final PrintStream out;
+        private final long start;
+        private long lastReport;
+
+        ProgressPrinter(final PrintStream out, final long start) {
+            this.out = out;
+            this.start = start;
+            this.lastReport = start;
+        }
+
+        @Override
+        public synchronized void artifactIndexed(int indexed, int total, long bytes) {
+            final long now = System.nanoTime();
+            if (indexed != total && TimeUnit.NANOSECONDS.toMillis(now - lastReport) < PROGRESS_INTERVAL) {
+                return;
+            }
+            lastReport = now;
+            final String count = total == -1 ? String.valueOf(indexed) : indexed + "/" + total;
+            out.println(String.format(Locale.ROOT, "Read %s artifacts (%s, %s)",
+                    count, formatBytes(bytes), formatRate(bytes, now - start)));
+        }
+    }
 }
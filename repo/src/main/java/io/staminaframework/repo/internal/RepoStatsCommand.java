@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import io.staminaframework.repo.RepositoryMetrics;
+import io.staminaframework.runtime.command.Command;
+import io.staminaframework.runtime.command.CommandConstants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Display repository metrics.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = Command.class, property = CommandConstants.COMMAND + "=repo:stats")
+public class RepoStatsCommand implements Command {
+    private static final int[] STATUS_CODES = {200, 206, 304, 400, 404, 416, 503};
+    private static final int TOP_ARTIFACTS = 10;
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    private final List<RepositoryMetrics> repositories = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void help(PrintStream out) {
+        out.println("Display repository metrics.");
+        out.println("Usage: repo:stats [<repository id>]");
+    }
+
+    @Override
+    public boolean execute(Context context) throws Exception {
+        final String[] args = context.arguments();
+        if (args.length > 1) {
+            help(context.out());
+            return false;
+        }
+        final String repositoryId = args.length == 0 ? null : args[0];
+
+        final List<RepositoryMetrics> selected = new ArrayList<>(repositories.size());
+        for (final RepositoryMetrics metrics : repositories) {
+            if (repositoryId == null || repositoryId.equals(metrics.getRepositoryId())) {
+                selected.add(metrics);
+            }
+        }
+        if (selected.isEmpty()) {
+            if (repositoryId == null) {
+                context.out().println("No repository found");
+            } else {
+                context.err().println("Repository not found: " + repositoryId);
+            }
+            return false;
+        }
+        selected.sort((m1, m2) -> m1.getRepositoryId().compareTo(m2.getRepositoryId()));
+
+        for (final RepositoryMetrics metrics : selected) {
+            print(context.out(), metrics);
+        }
+        return false;
+    }
+
+    private static void print(PrintStream out, RepositoryMetrics metrics) {
+        out.println("Repository: " + metrics.getRepositoryId());
+        out.println("  Indexing");
+        out.println("    Runs:               " + metrics.getIndexRunCount()
+                + " (" + metrics.getIndexFailureCount() + " failed)");
+        out.println("    Last duration:      " + metrics.getLastIndexDuration() + " ms");
+        out.println("    Total duration:     " + metrics.getTotalIndexDuration() + " ms");
+        out.println("    Files hashed:       " + metrics.getFilesHashed());
+        out.println("    Bytes hashed:       " + metrics.getBytesHashed());
+        out.println("    Cache hit ratio:    " + String.format("%.1f %%", metrics.getIndexCacheHitRatio() * 100));
+        out.println("    Last queue delay:   " + metrics.getLastQueueDelay() + " ms");
+        out.println("    Last debounce:      " + metrics.getLastDebounceDelay() + " ms");
+        out.println("  Verification");
+        out.println("    Passes:             " + metrics.getScrubPassCount()
+                + String.format(" (current: %.0f %%)", metrics.getScrubProgress() * 100));
+        out.println("    Bytes verified:     " + metrics.getScrubbedBytes());
+        final Set<String> quarantined = metrics.getQuarantinedArtifacts();
+        out.println("    In quarantine:      " + quarantined.size());
+        for (final String artifact : quarantined) {
+            out.println("      " + artifact);
+        }
+        out.println("  Serving");
+        out.println("    Requests:           " + metrics.getRequestCount()
+                + String.format(" (%.2f/s)", metrics.getRequestRate()));
+        out.println("    Latency:            p50=" + metrics.getRequestLatency(50)
+                + " us, p90=" + metrics.getRequestLatency(90)
+                + " us, p99=" + metrics.getRequestLatency(99) + " us");
+        out.println("    Bytes served:       " + metrics.getBytesServed());
+        final StringBuilder responses = new StringBuilder(64);
+        for (final int status : STATUS_CODES) {
+            final long count = metrics.getResponseCount(status);
+            if (count != 0) {
+                if (responses.length() != 0) {
+                    responses.append(", ");
+                }
+                responses.append(status).append('=').append(count);
+            }
+        }
+        out.println("    Responses:          " + (responses.length() == 0 ? "-" : responses));
+        final Map<String, Long> top = metrics.getTopArtifacts(TOP_ARTIFACTS);
+        if (!top.isEmpty()) {
+            out.println("  Top artifacts");
+            for (final Map.Entry<String, Long> e : top.entrySet()) {
+                out.println("    " + e.getValue() + "\t" + e.getKey());
+            }
+        }
+    }
+}
@@ -18,23 +18,45 @@ package io.staminaframework.repo.internal;
 
 import org.apache.felix.utils.manifest.Parser;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 /**
  * This component is responsible for generating an OBR index file,
@@ -43,146 +65,862 @@ import java.util.zip.ZipFile;
  * @author Stamina Framework developers
  */
 class RepositoryIndexer {
+    /**
+     * Prefix for temporary files written in the repository directory.
+     */
+    static final String TEMP_FILE_PREFIX = ".obr-";
+    /**
+     * Resource order used in index files: symbolic name, version (invalid versions last), then path.
+     */
+    static final Comparator<Resource> RESOURCE_ORDER = Comparator
+            .comparing((Resource rsc) -> rsc.symbolicName)
+            .thenComparing((r1, r2) -> compareVersions(r1.version, r2.version))
+            .thenComparing(rsc -> rsc.url);
+
+    private final int threads;
+    private final boolean contentAddressed;
+    private final IoBudget ioBudget;
+    private ProgressListener progressListener;
+    private long cacheHits;
+    private long filesHashed;
+    private long bytesHashed;
+
+    /**
+     * Create an indexer using as many threads as there are available processors.
+     */
+    RepositoryIndexer() {
+        this(0);
+    }
+
+    /**
+     * Create an indexer.
+     *
+     * @param threads number of threads used to index artifacts
+     *                (if zero or negative, the number of available processors is used)
+     */
+    RepositoryIndexer(int threads) {
+        this(threads, false);
+    }
+
+    /**
+     * Create an indexer.
+     *
+     * @param threads          number of threads used to index artifacts
+     *                         (if zero or negative, the number of available processors is used)
+     * @param contentAddressed <code>true</code> to write index files using content-addressed URLs
+     *                         (see {@link ContentAddressing})
+     */
+    RepositoryIndexer(int threads, boolean contentAddressed) {
+        this(threads, contentAddressed, null);
+    }
+
+    /**
+     * Create an indexer.
+     *
+     * @param threads          number of threads used to index artifacts
+     *                         (if zero or negative, the number of available processors is used)
+     * @param contentAddressed <code>true</code> to write index files using content-addressed URLs
+     *                         (see {@link ContentAddressing})
+     * @param ioBudget         read budget charged for artifacts read (may be <code>null</code>)
+     */
+    RepositoryIndexer(int threads, boolean contentAddressed, IoBudget ioBudget) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.contentAddressed = contentAddressed;
+        this.ioBudget = ioBudget;
+    }
+
+    /**
+     * Listener notified while artifacts are read.
+     * This listener may be called from several threads at the same time.
+     *
+     * @author Stamina Framework developers
+     */
+    interface ProgressListener {
+        /**
+         * Handle indexing progress.
+         *
+         * @param indexed number of artifacts read so far
+         * @param total   number of artifacts to read, or <code>-1</code> if unknown
+         * @param bytes   number of bytes read so far
+         */
+        void artifactIndexed(int indexed, int total, long bytes);
+    }
+
+    /**
+     * Set a listener notified while artifacts are read.
+     *
+     * @param progressListener progress listener (may be <code>null</code>)
+     */
+    void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
     /**
      * Index repository.
      *
      * @param repoDir   repository directory
      * @param indexFile index file
      * @param repoName  repository name (may be <code>null</code>)
+     * @return indexed resources
      * @throws IOException if repository indexing failed
      */
-    void indexRepository(Path repoDir, Path indexFile, String repoName) throws IOException {
-        final MessageDigest md;
+    List<Resource> indexRepository(Path repoDir, Path indexFile, String repoName) throws IOException {
+        return indexRepository(repoDir, indexFile, repoName, new IndexCache());
+    }
+
+    /**
+     * Index repository, reusing artifact metadata from a cache.
+     * Only new or updated artifacts are actually read: the cache is updated
+     * accordingly, and entries for deleted artifacts are dropped.
+     *
+     * @param repoDir   repository directory
+     * @param indexFile index file
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param cache     artifact metadata cache
+     * @return indexed resources
+     * @throws IOException if repository indexing failed
+     */
+    List<Resource> indexRepository(Path repoDir, Path indexFile, String repoName, IndexCache cache) throws IOException {
+        return indexRepository(repoDir, indexFile, repoName, cache, null);
+    }
+
+    /**
+     * Index repository, reusing artifact metadata from a cache.
+     * Repository is scanned as described in {@link #scanRepository(Path, IndexCache, Set)},
+     * then index files are published (see {@link #publishIndex(Path, String, List, String, String)}):
+     * index files are left untouched if their content is unchanged.
+     *
+     * @param repoDir      repository directory
+     * @param indexFile    index file
+     * @param repoName     repository name (may be <code>null</code>)
+     * @param cache        artifact metadata cache
+     * @param changedPaths files or directories changed since last indexing run,
+     *                     or <code>null</code> to scan the whole repository
+     * @return indexed resources, sorted by symbolic name and version
+     * @throws IOException if repository indexing failed
+     */
+    List<Resource> indexRepository(Path repoDir, Path indexFile, String repoName,
+                                   IndexCache cache, Set<Path> changedPaths) throws IOException {
+        final List<Resource> resources = scanRepository(repoDir, cache, changedPaths);
+        final List<Resource> published = contentAddressed ? ContentAddressing.publish(resources) : resources;
+        // Index files may have been edited or restored since they were written:
+        // these files are always compared with the index which would be written.
+        publishIndex(indexFile, repoName, published, null, null);
+        return resources;
+    }
+
+    /**
+     * Publish index files, unless existing index files already hold the same content:
+     * these files are then kept as is (including their increment), so that clients
+     * do not download them again.
+     * Index content is compared using the fingerprint of the last index written
+     * by this process, or by comparing the existing index file with the one which
+     * would be written if this fingerprint is unknown.
+     * A fingerprint must not be persisted: index files may be changed by other processes.
+     *
+     * @param indexFile           index file
+     * @param repoName            repository name (may be <code>null</code>)
+     * @param published           resources to publish, sorted
+     * @param fingerprint         fingerprint of index content (see {@link ObrWriter#fingerprint(String, List)}),
+     *                            or <code>null</code> if <code>previousFingerprint</code> is <code>null</code>
+     * @param previousFingerprint fingerprint of the last index written by this process,
+     *                            or <code>null</code> if unknown
+     * @return <code>true</code> if index files were written
+     * @throws IOException if index files could not be written
+     */
+    static boolean publishIndex(Path indexFile, String repoName, List<Resource> published,
+                                String fingerprint, String previousFingerprint) throws IOException {
+        final Path binaryIndexFile = BinaryIndex.binaryIndexFile(indexFile);
+        final boolean upToDate = Files.isRegularFile(indexFile)
+                && Files.isRegularFile(compressedIndexFile(indexFile))
+                && Files.isRegularFile(binaryIndexFile)
+                && (previousFingerprint == null
+                ? isIndexFileUpToDate(indexFile, repoName, published) : previousFingerprint.equals(fingerprint));
+        if (upToDate) {
+            return false;
+        }
+        writeIndexFiles(indexFile, repoName, nextIncrement(BinaryIndex.readIncrement(binaryIndexFile)), published);
+        return true;
+    }
+
+    /**
+     * Check if an index file holds given resources. The index file is compared with
+     * the one which would be written for these resources, using the increment
+     * of the binary index: index files not sharing the same increment are out of date.
+     *
+     * @param indexFile index file
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param published published resources, sorted
+     * @return <code>true</code> if index file is up-to-date
+     * @throws IOException if index file could not be read
+     */
+    static boolean isIndexFileUpToDate(Path indexFile, String repoName, List<Resource> published) throws IOException {
+        final long increment = BinaryIndex.readIncrement(BinaryIndex.binaryIndexFile(indexFile));
+        if (increment == -1 || !Files.isRegularFile(indexFile)) {
+            return false;
+        }
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(indexFile), 65536)) {
+            final ContentComparison comparison = new ContentComparison(in);
+            final OutputStream out = new BufferedOutputStream(comparison, 65536);
+            ObrWriter.write(out, repoName, increment, published);
+            out.flush();
+            return comparison.isEqual();
+        }
+    }
+
+    /**
+     * Write an index file, along with its compressed and binary copies.
+     * Every copy is first written to a temporary file next to the index file,
+     * then all of them are atomically moved to their final location:
+     * the index file is moved last.
+     *
+     * @param indexFile index file
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param increment index increment
+     * @param published resources to publish, sorted
+     * @throws IOException if index files could not be written
+     */
+    static void writeIndexFiles(Path indexFile, String repoName, long increment,
+                                List<Resource> published) throws IOException {
+        final Path tmpIndexFile = Files.createTempFile(
+                indexFile.toAbsolutePath().getParent(), TEMP_FILE_PREFIX, ".xml");
+        final Path tmpCompressedIndexFile = compressedIndexFile(tmpIndexFile);
+        final Path tmpBinaryIndexFile = BinaryIndex.binaryIndexFile(tmpIndexFile);
+        boolean written = false;
         try {
-            md = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("Failed to compute checksums using SHA-256", e);
+            ObrWriter.write(tmpIndexFile, repoName, increment, published);
+            BinaryIndex.write(tmpBinaryIndexFile, increment, published);
+            Files.move(tmpCompressedIndexFile, compressedIndexFile(indexFile), REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.move(tmpBinaryIndexFile, BinaryIndex.binaryIndexFile(indexFile), REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.move(tmpIndexFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(tmpIndexFile);
+                Files.deleteIfExists(tmpCompressedIndexFile);
+                Files.deleteIfExists(tmpBinaryIndexFile);
+            }
         }
+    }
 
-        final Set<Resource> resources = new HashSet<>(16);
-        final Set<Path> resourceFiles = Files.walk(repoDir)
-                .filter(p -> p.toString().endsWith(".esa") || p.toString().endsWith(".jar"))
-                .map(p -> repoDir.resolve(p))
-                .collect(Collectors.toSet());
-        final byte[] buf = new byte[4096];
-        for (final Path resourceFile : resourceFiles) {
-            final Resource rsc = new Resource();
-            try (final InputStream in = Files.newInputStream(resourceFile)) {
-                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
-                    md.update(buf, 0, bytesRead);
-                }
+    /**
+     * Check if two index files hold the same resources, whatever their increment.
+     *
+     * @param indexFile         index file
+     * @param increment         index file increment
+     * @param otherIndexFile    other index file
+     * @param otherIncrement    other index file increment
+     * @param repoName          repository name (may be <code>null</code>)
+     * @return <code>true</code> if both index files hold the same resources
+     * @throws IOException if index files could not be read
+     */
+    private static boolean isSameIndexContent(Path indexFile, long increment, Path otherIndexFile,
+                                              long otherIncrement, String repoName) throws IOException {
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(indexFile), 65536);
+             final InputStream otherIn = new BufferedInputStream(Files.newInputStream(otherIndexFile), 65536)) {
+            final ContentComparison comparison = new ContentComparison(in);
+            comparison.write(ObrWriter.header(repoName, increment));
+            // Headers only differ by their increment: the other header is skipped.
+            final byte[] buf = new byte[65536];
+            int headerLength = ObrWriter.header(repoName, otherIncrement).length;
+            for (int n; headerLength > 0
+                    && (n = otherIn.read(buf, 0, Math.min(headerLength, buf.length))) != -1; ) {
+                headerLength -= n;
             }
-            final byte[] hash = md.digest();
-            rsc.checksum = bytesToHex(hash);
-            rsc.fileSize = Files.size(resourceFile);
+            for (int n; (n = otherIn.read(buf)) != -1 && comparison.equal; ) {
+                comparison.write(buf, 0, n);
+            }
+            return comparison.isEqual();
+        }
+    }
 
-            try (final ZipFile zip = new ZipFile(resourceFile.toFile())) {
-                ZipEntry e = zip.getEntry("META-INF/MANIFEST.MF");
-                if (e != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(e));
-                    final String bsn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
-                    if (bsn != null) {
-                        rsc.symbolicName = Parser.parseHeader(bsn)[0].getName();
-                        rsc.type = man.getMainAttributes().getValue(Constants.FRAGMENT_HOST) == null
-                                ? Resource.Type.BUNDLE : Resource.Type.FRAGMENT_BUNDLE;
-                        rsc.version = man.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
-                        if (rsc.version == null) {
-                            rsc.version = "0.0.0";
+    /**
+     * Check if the compressed copy of an index file holds the same content as the index file.
+     *
+     * @param indexFile index file
+     * @return <code>true</code> if compressed copy is up-to-date
+     * @throws IOException if index file could not be read
+     */
+    private static boolean isCompressedIndexFileUpToDate(Path indexFile) throws IOException {
+        try (final InputStream in = new BufferedInputStream(Files.newInputStream(indexFile), 65536);
+             final InputStream compressedIn = new GZIPInputStream(
+                     Files.newInputStream(compressedIndexFile(indexFile)), 65536)) {
+            final ContentComparison comparison = new ContentComparison(in);
+            final byte[] buf = new byte[65536];
+            for (int n; (n = compressedIn.read(buf)) != -1 && comparison.equal; ) {
+                comparison.write(buf, 0, n);
+            }
+            return comparison.isEqual();
+        } catch (ZipException | EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Index repository using a bounded amount of memory, whatever the repository size.
+     * Repository directories are walked lazily, and artifacts are read in batches.
+     * Indexed resources are sorted using temporary files written next to the index file
+     * (see {@link ResourceSpool}), then streamed to the index file and its binary copy
+     * (see {@link BinaryIndex.Writer}). No cache is used.
+     * Existing index files are kept as is (including their increment) if their content is unchanged.
+     *
+     * @param repoDir              repository directory
+     * @param indexFile            index file
+     * @param repoName             repository name (may be <code>null</code>)
+     * @param maxBufferedResources maximum number of resources kept in memory
+     * @return number of indexed resources
+     * @throws IOException if repository indexing failed
+     */
+    int indexRepositoryStreaming(Path repoDir, Path indexFile, String repoName,
+                                 int maxBufferedResources) throws IOException {
+        final Path indexDir = indexFile.toAbsolutePath().getParent();
+        final Path binaryIndexFile = BinaryIndex.binaryIndexFile(indexFile);
+        final long currentIncrement = BinaryIndex.readIncrement(binaryIndexFile);
+        final long increment = nextIncrement(currentIncrement);
+        final Path realRepoDir = repoDir.toRealPath();
+        final int batchSize = Math.max(1, Math.min(maxBufferedResources, threads * 64));
+        final ExecutorService executor = threads <= 1 ? null : newWorkerPool(threads);
+        final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+        final Progress progress = new Progress(-1);
+        Path tmpIndexFile = null;
+        Path tmpBinaryIndexFile = null;
+        try (final ResourceSpool spool = new ResourceSpool(indexDir, RESOURCE_ORDER, maxBufferedResources)) {
+            final List<ArtifactTask> batch = new ArrayList<>(batchSize);
+            Files.walkFileTree(repoDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!isArtifactFile(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final ArtifactTask task = newArtifactTask(repoDir, realRepoDir, file);
+                    if (task != null) {
+                        batch.add(task);
+                        if (batch.size() >= batchSize) {
+                            spoolArtifacts(batch, executor, workers, progress, spool);
                         }
-                        rsc.url = repoDir.relativize(resourceFile).toString();
-                        resources.add(rsc);
-                        continue;
                     }
+                    return FileVisitResult.CONTINUE;
                 }
-                e = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-                if (e != null) {
-                    final Manifest man = new Manifest(zip.getInputStream(e));
-                    final String ssn = man.getMainAttributes().getValue("Subsystem-SymbolicName");
-                    if (ssn != null) {
-                        final String stype = man.getMainAttributes().getValue("Subsystem-Type");
-                        if ("osgi.subsystem.feature".equals(stype)) {
-                            rsc.symbolicName = Parser.parseHeader(ssn)[0].getName();
-                            rsc.type = Resource.Type.FEATURE_SUBSYSTEM;
-                            rsc.version = man.getMainAttributes().getValue("Subsystem-Version");
-                            if (rsc.version == null) {
-                                rsc.version = "0.0.0";
-                            }
-                            rsc.url = repoDir.relativize(resourceFile).toString();
-                            resources.add(rsc);
-                            continue;
+            });
+            spoolArtifacts(batch, executor, workers, progress, spool);
+
+            final Iterator<Resource> sorted = spool.sorted();
+            final Iterator<Resource> published = contentAddressed ? ContentAddressing.publishSorted(sorted) : sorted;
+            tmpIndexFile = Files.createTempFile(indexDir, TEMP_FILE_PREFIX, ".xml");
+            tmpBinaryIndexFile = BinaryIndex.binaryIndexFile(tmpIndexFile);
+            // Both index copies are written in a single pass over sorted resources.
+            try (final BinaryIndex.Writer binaryIndex = new BinaryIndex.Writer(
+                    tmpBinaryIndexFile, increment, maxBufferedResources * 16, true)) {
+                ObrWriter.write(tmpIndexFile, repoName, increment, () -> new Iterator<Resource>() {
+                    @Override
+                    public boolean hasNext() {
+                        return published.hasNext();
+                    }
+
+                    @Override
+                    public Resource next() {
+                        final Resource rsc = published.next();
+                        try {
+                            binaryIndex.add(rsc);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
                         }
+                        return rsc;
                     }
-                }
+                });
+                binaryIndex.finish();
+            }
+            // Resources are not kept in memory: new index file is compared with the existing one.
+            if (currentIncrement != -1 && Files.isRegularFile(indexFile)
+                    && Files.isRegularFile(compressedIndexFile(indexFile))
+                    && isSameIndexContent(indexFile, currentIncrement, tmpIndexFile, increment, repoName)
+                    && isCompressedIndexFileUpToDate(indexFile)) {
+                return spool.size();
+            }
+            Files.move(compressedIndexFile(tmpIndexFile), compressedIndexFile(indexFile),
+                    REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.move(tmpBinaryIndexFile, binaryIndexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.move(tmpIndexFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+            tmpIndexFile = null;
+            return spool.size();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (tmpIndexFile != null) {
+                Files.deleteIfExists(tmpIndexFile);
+                Files.deleteIfExists(compressedIndexFile(tmpIndexFile));
+                Files.deleteIfExists(tmpBinaryIndexFile);
             }
         }
+    }
 
-        XMLStreamWriter xml = null;
-        try (final OutputStream out = Files.newOutputStream(indexFile)) {
-            xml = XMLOutputFactory.newFactory().createXMLStreamWriter(
-                    out, "UTF-8");
+    private void spoolArtifacts(List<ArtifactTask> batch, ExecutorService executor, ThreadLocal<Worker> workers,
+                                Progress progress, ResourceSpool spool) throws IOException {
+        indexArtifacts(batch, executor, workers, progress);
+        for (final ArtifactTask task : batch) {
+            ++filesHashed;
+            bytesHashed += task.attrs.size();
+            if (task.resource != null) {
+                spool.add(task.resource);
+            }
+        }
+        batch.clear();
+    }
 
-            xml.writeStartDocument("UTF-8", "1.0");
-            xml.writeStartElement("repository");
-            xml.writeDefaultNamespace("http://www.osgi.org/xmlns/repository/v1.0.0");
-            xml.writeAttribute("increment", String.valueOf(System.currentTimeMillis()));
-            if (repoName != null && repoName.length() != 0) {
-                xml.writeAttribute("name", repoName);
+    /**
+     * Check an existing index against repository content, without writing index files.
+     * Repository is scanned as described in {@link #scanRepository(Path, IndexCache, Set)}:
+     * artifacts found in cache are not read again.
+     * Indexed resources are read from the binary copy of the index file, then the index file
+     * and its compressed copy are compared with the ones which would be written.
+     *
+     * @param repoDir   repository directory
+     * @param indexFile index file
+     * @param repoName  repository name (may be <code>null</code>)
+     * @param cache     artifact metadata cache
+     * @return differences between the index and repository content
+     * (an empty list is returned if the index is up-to-date)
+     * @throws IOException if repository could not be scanned
+     */
+    List<String> checkRepository(Path repoDir, Path indexFile, String repoName, IndexCache cache) throws IOException {
+        final List<String> differences = new ArrayList<>(4);
+        final Path binaryIndexFile = BinaryIndex.binaryIndexFile(indexFile);
+        for (final Path file : Arrays.asList(indexFile, compressedIndexFile(indexFile), binaryIndexFile)) {
+            if (!Files.isRegularFile(file)) {
+                differences.add("Missing index file: " + file);
             }
+        }
+        if (!differences.isEmpty()) {
+            return differences;
+        }
 
-            for (final Resource rsc : resources) {
-                xml.writeStartElement("resource");
-                xml.writeStartElement("capability");
-                xml.writeAttribute("namespace", "osgi.identity");
+        final BinaryIndex index = BinaryIndex.map(binaryIndexFile);
+        final List<Resource> resources = scanRepository(repoDir, cache, null);
+        final List<Resource> published = contentAddressed ? ContentAddressing.publish(resources) : resources;
+        // Expected index is built the same way the index file was.
+        final Path tmpBinaryIndexFile = Files.createTempFile(
+                indexFile.toAbsolutePath().getParent(), TEMP_FILE_PREFIX, ".idx");
+        final BinaryIndex expectedIndex;
+        try {
+            BinaryIndex.write(tmpBinaryIndexFile, index.increment(), published);
+            expectedIndex = new BinaryIndex(ByteBuffer.wrap(Files.readAllBytes(tmpBinaryIndexFile)));
+        } finally {
+            Files.deleteIfExists(tmpBinaryIndexFile);
+        }
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "osgi.identity");
-                xml.writeAttribute("value", rsc.symbolicName);
+        final Map<String, Integer> indexedUrls = new HashMap<>(index.size() * 2);
+        for (int i = 0; i < index.size(); ++i) {
+            indexedUrls.put(index.url(i), i);
+        }
+        for (int i = 0; i < expectedIndex.size(); ++i) {
+            final String url = expectedIndex.url(i);
+            final Integer j = indexedUrls.remove(url);
+            if (j == null) {
+                differences.add("Artifact is not indexed: " + url);
+            } else if (!expectedIndex.checksum(i).equals(index.checksum(j))
+                    || expectedIndex.fileSize(i) != index.fileSize(j)) {
+                differences.add("Artifact was changed: " + url);
+            }
+        }
+        for (final String url : new TreeSet<>(indexedUrls.keySet())) {
+            differences.add("Artifact was removed: " + url);
+        }
+        // Clients download the XML index (or its compressed copy), not the binary one.
+        if (!isIndexFileUpToDate(indexFile, repoName, published)) {
+            differences.add("Index file is out of date: " + indexFile);
+        }
+        if (!isCompressedIndexFileUpToDate(indexFile)) {
+            differences.add("Compressed index file is out of date: " + compressedIndexFile(indexFile));
+        }
+        return differences;
+    }
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "type");
-                xml.writeAttribute("value", rsc.type.osgiType);
+    /**
+     * Scan repository, reusing artifact metadata from a cache.
+     * If changed paths are set, the cache is expected to reflect repository content
+     * as of the last indexing run: only changed paths are scanned, and cache entries
+     * for other artifacts are used as is.
+     *
+     * @param repoDir      repository directory
+     * @param cache        artifact metadata cache
+     * @param changedPaths files or directories changed since last indexing run,
+     *                     or <code>null</code> to scan the whole repository
+     * @return indexed resources, sorted by symbolic name and version
+     * @throws IOException if repository could not be scanned
+     */
+    List<Resource> scanRepository(Path repoDir, IndexCache cache, Set<Path> changedPaths) throws IOException {
+        final List<Resource> resources = new ArrayList<>(Math.max(16, cache.size()));
+        final Set<String> urls = new HashSet<>(Math.max(16, cache.size()));
+        final Collection<Path> resourceFiles;
+        if (changedPaths == null || changedPaths.contains(repoDir)) {
+            resourceFiles = listArtifacts(repoDir);
+        } else {
+            final String separator = repoDir.getFileSystem().getSeparator();
+            final List<String> changedUrls = new ArrayList<>(changedPaths.size());
+            for (final Path changedPath : changedPaths) {
+                changedUrls.add(repoDir.relativize(changedPath).toString());
+            }
+            cache.forEach((url, entry) -> {
+                for (final String changedUrl : changedUrls) {
+                    if (url.equals(changedUrl) || url.startsWith(changedUrl + separator)) {
+                        return;
+                    }
+                }
+                // This artifact is known to be unchanged since last indexing run.
+                urls.add(url);
+                ++cacheHits;
+                if (entry.resource != null) {
+                    resources.add(entry.resource);
+                }
+            });
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "version");
-                xml.writeAttribute("type", "Version");
-                xml.writeAttribute("value", rsc.version);
+            resourceFiles = new HashSet<>(changedPaths.size());
+            for (final Path changedPath : changedPaths) {
+                if (Files.exists(changedPath)) {
+                    resourceFiles.addAll(listArtifacts(changedPath));
+                }
+            }
+        }
 
-                xml.writeEndElement();
-                xml.writeStartElement("capability");
-                xml.writeAttribute("namespace", "osgi.content");
+        final Path realRepoDir = repoDir.toRealPath();
+        final List<ArtifactTask> tasks = new ArrayList<>(16);
+        for (final Path resourceFile : resourceFiles) {
+            final ArtifactTask task = newArtifactTask(repoDir, realRepoDir, resourceFile);
+            if (task == null) {
+                continue;
+            }
+            urls.add(task.url);
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "osgi.content");
-                xml.writeAttribute("value", rsc.checksum);
+            final IndexCache.Entry cacheEntry = cache.get(task.url, task.attrs);
+            if (cacheEntry != null) {
+                ++cacheHits;
+                if (cacheEntry.resource != null) {
+                    resources.add(cacheEntry.resource);
+                }
+            } else {
+                tasks.add(task);
+            }
+        }
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "url");
-                xml.writeAttribute("value", rsc.url);
+        for (final ArtifactTask task : indexArtifacts(tasks)) {
+            ++filesHashed;
+            bytesHashed += task.attrs.size();
+            cache.put(task.url, task.attrs, task.resource);
+            if (task.resource != null) {
+                resources.add(task.resource);
+            }
+        }
+        cache.retainAll(urls);
 
-                xml.writeEmptyElement("attribute");
-                xml.writeAttribute("name", "size");
-                xml.writeAttribute("type", "Long");
-                xml.writeAttribute("value", String.valueOf(rsc.fileSize));
+        // Keep index content stable from one run to another.
+        resources.sort(RESOURCE_ORDER);
+        return resources;
+    }
 
-                xml.writeEndElement();
-                xml.writeEndElement();
+    /**
+     * Get the number of artifacts found in cache by this indexer.
+     *
+     * @return cache hit count
+     */
+    long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Get the number of artifacts read by this indexer.
+     *
+     * @return artifact count
+     */
+    long getFilesHashed() {
+        return filesHashed;
+    }
+
+    /**
+     * Get the number of bytes read by this indexer.
+     *
+     * @return byte count
+     */
+    long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    /**
+     * Compute the increment of a new index.
+     * Increments are based on current time, while always increasing
+     * (even if the system clock goes backwards).
+     *
+     * @param previous increment of the previous index, or <code>-1</code> if unknown
+     * @return new index increment
+     */
+    static long nextIncrement(long previous) {
+        return Math.max(previous + 1, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the path to the compressed copy of an index file.
+     *
+     * @param indexFile index file
+     * @return compressed index file (using gzip)
+     */
+    static Path compressedIndexFile(Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + ".gz");
+    }
+
+    /**
+     * Prepare an artifact to be indexed.
+     *
+     * @param repoDir      repository directory
+     * @param realRepoDir  repository directory, with symbolic links resolved
+     * @param resourceFile artifact file
+     * @return artifact task, or <code>null</code> if this file must not be indexed
+     * @throws IOException if file attributes could not be read
+     */
+    private static ArtifactTask newArtifactTask(Path repoDir, Path realRepoDir, Path resourceFile) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(resourceFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isSymbolicLink()) {
+                // Artifacts linked from outside the repository are not indexed,
+                // since these files are not served.
+                if (!resourceFile.toRealPath().startsWith(realRepoDir)) {
+                    return null;
+                }
+                attrs = Files.readAttributes(resourceFile, BasicFileAttributes.class);
             }
+        } catch (NoSuchFileException e) {
+            // This artifact was removed while indexing.
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        return new ArtifactTask(resourceFile, repoDir.relativize(resourceFile).toString(), attrs);
+    }
 
-            xml.writeEndElement();
-            xml.writeEndDocument();
-        } catch (XMLStreamException e) {
-            throw new IOException("Failed to write repository index file", e);
+    private static boolean isArtifactFile(Path file) {
+        return file.toString().endsWith(".esa") || file.toString().endsWith(".jar");
+    }
+
+    /**
+     * List artifacts found in a directory and its subdirectories.
+     *
+     * @param dir directory, or artifact file
+     * @return artifact files
+     * @throws IOException if directory could not be read
+     */
+    private static List<Path> listArtifacts(Path dir) throws IOException {
+        try (final Stream<Path> files = Files.walk(dir)) {
+            return files
+                    .filter(RepositoryIndexer::isArtifactFile)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Compute metadata for artifacts, using a bounded pool of worker threads.
+     *
+     * @param tasks artifacts to index
+     * @return indexed artifacts
+     * @throws IOException if an artifact could not be read
+     */
+    private List<ArtifactTask> indexArtifacts(List<ArtifactTask> tasks) throws IOException {
+        final int poolSize = Math.min(threads, tasks.size());
+        final ExecutorService executor = poolSize <= 1 ? null : newWorkerPool(poolSize);
+        try {
+            indexArtifacts(tasks, executor, ThreadLocal.withInitial(Worker::new), new Progress(tasks.size()));
         } finally {
-            if (xml != null) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return tasks;
+    }
+
+    private static ExecutorService newWorkerPool(int poolSize) {
+        return Executors.newFixedThreadPool(poolSize, r -> {
+            final Thread t = new Thread(r, "Stamina Repository Indexer Worker");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Compute metadata for artifacts.
+     *
+     * @param tasks    artifacts to index
+     * @param executor worker threads, or <code>null</code> to index artifacts from the current thread
+     * @param workers  worker state for each thread
+     * @param progress indexing progress
+     * @throws IOException if an artifact could not be read
+     */
+    private void indexArtifacts(List<ArtifactTask> tasks, ExecutorService executor,
+                                ThreadLocal<Worker> workers, Progress progress) throws IOException {
+        if (executor == null) {
+            final Worker worker = workers.get();
+            for (final ArtifactTask task : tasks) {
+                indexArtifact(task, worker, progress);
+            }
+            return;
+        }
+        try {
+            final List<Future<ArtifactTask>> results = new ArrayList<>(tasks.size());
+            for (final ArtifactTask task : tasks) {
+                results.add(executor.submit(() -> indexArtifact(task, workers.get(), progress)));
+            }
+            for (final Future<ArtifactTask> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Repository indexing was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to index artifact", e.getCause());
+        }
+    }
+
+    private ArtifactTask indexArtifact(ArtifactTask task, Worker worker, Progress progress) throws IOException {
+        task.call(worker);
+        if (ioBudget != null) {
+            ioBudget.charge(task.attrs.size());
+        }
+        final int indexed = progress.indexed.incrementAndGet();
+        final long bytes = progress.bytes.addAndGet(task.attrs.size());
+        if (progressListener != null) {
+            progressListener.artifactIndexed(indexed, progress.total, bytes);
+        }
+        return task;
+    }
+
+    /**
+     * Compute metadata for a repository artifact.
+     *
+     * @param resourceFile artifact file
+     * @param url          artifact path, relative to the repository directory
+     * @param attrs        artifact file attributes
+     * @param worker       worker state used to read artifact content
+     * @return resource, or <code>null</code> if this artifact is not an OSGi resource
+     * @throws IOException if artifact could not be read
+     */
+    private static Resource indexArtifact(Path resourceFile, String url, BasicFileAttributes attrs,
+                                          Worker worker) throws IOException {
+        final MessageDigest md = worker.md;
+        final byte[] buf = worker.buf;
+        md.reset();
+
+        // Artifact content is read once: every byte goes through the digest,
+        // while manifest entries are extracted from the same stream.
+        final Manifests manifests = new Manifests();
+        boolean streamReadable = true;
+        try (final InputStream in = new DigestInputStream(Files.newInputStream(resourceFile), md)) {
+            try {
+                readManifests(new ZipInputStream(new BufferedInputStream(in, buf.length)), manifests);
+            } catch (ZipException e) {
+                // Some archives cannot be read as a stream
+                // (such as stored entries with a data descriptor).
+                streamReadable = false;
+            }
+            while (in.read(buf) != -1) {
+                // Consume remaining content, so that checksum is computed for the whole artifact.
+            }
+        }
+        if (!streamReadable) {
+            try (final ZipFile zip = new ZipFile(resourceFile.toFile())) {
+                ZipEntry e = zip.getEntry("META-INF/MANIFEST.MF");
+                if (e != null) {
+                    manifests.bundle = new Manifest(zip.getInputStream(e));
+                }
+                e = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
+                if (e != null) {
+                    manifests.subsystem = new Manifest(zip.getInputStream(e));
+                }
+            }
+        }
+
+        final Resource rsc = new Resource();
+        final byte[] hash = md.digest();
+        rsc.checksum = bytesToHex(hash);
+        rsc.fileSize = attrs.size();
+        rsc.lastModified = attrs.lastModifiedTime().toMillis();
+        rsc.url = url;
+
+        if (manifests.bundle != null) {
+            final Manifest man = manifests.bundle;
+            final String bsn = man.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME);
+            if (bsn != null) {
+                rsc.symbolicName = Parser.parseHeader(bsn)[0].getName();
+                rsc.type = man.getMainAttributes().getValue(Constants.FRAGMENT_HOST) == null
+                        ? Resource.Type.BUNDLE : Resource.Type.FRAGMENT_BUNDLE;
+                rsc.version = man.getMainAttributes().getValue(Constants.BUNDLE_VERSION);
+                if (rsc.version == null) {
+                    rsc.version = "0.0.0";
+                }
                 try {
-                    xml.close();
-                } catch (XMLStreamException ignore) {
+                    ManifestCapabilities.parseBundle(man, rsc);
+                } catch (IllegalArgumentException e) {
+                    // This bundle cannot be resolved anyway:
+                    // it is still indexed, with identity and content only.
+                }
+                return rsc;
+            }
+        }
+        if (manifests.subsystem != null) {
+            final Manifest man = manifests.subsystem;
+            final String ssn = man.getMainAttributes().getValue("Subsystem-SymbolicName");
+            if (ssn != null) {
+                final String stype = man.getMainAttributes().getValue("Subsystem-Type");
+                if ("osgi.subsystem.feature".equals(stype)) {
+                    rsc.symbolicName = Parser.parseHeader(ssn)[0].getName();
+                    rsc.type = Resource.Type.FEATURE_SUBSYSTEM;
+                    rsc.version = man.getMainAttributes().getValue("Subsystem-Version");
+                    if (rsc.version == null) {
+                        rsc.version = "0.0.0";
+                    }
+                    return rsc;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read manifest entries from an archive stream.
+     * Parsing stops as soon as a bundle manifest is found, or when a subsystem
+     * manifest is found and metadata entries are over: metadata entries
+     * are usually stored first, so that most of the archive is never inflated.
+     *
+     * @param zip       archive stream
+     * @param manifests manifests found in the archive
+     * @throws IOException if archive could not be read
+     */
+    private static void readManifests(ZipInputStream zip, Manifests manifests) throws IOException {
+        for (ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+            final String name = e.getName();
+            if ("META-INF/MANIFEST.MF".equals(name)) {
+                manifests.bundle = new Manifest(zip);
+                if (manifests.bundle.getMainAttributes().getValue(Constants.BUNDLE_SYMBOLICNAME) != null) {
+                    return;
                 }
+            } else if ("OSGI-INF/SUBSYSTEM.MF".equals(name)) {
+                manifests.subsystem = new Manifest(zip);
+            }
+            if (manifests.subsystem != null
+                    && (manifests.bundle != null
+                    || (!name.startsWith("META-INF/") && !name.startsWith("OSGI-INF/")))) {
+                return;
             }
         }
     }
 
-    private static String bytesToHex(byte[] hash) {
+    static String bytesToHex(byte[] hash) {
         final StringBuffer hexString = new StringBuffer(64);
         for (int i = 0; i < hash.length; i++) {
             final String hex = Integer.toHexString(0xff & hash[i]);
@@ -192,13 +930,171 @@ class RepositoryIndexer {
         return hexString.toString();
     }
 
+    /**
+     * Compare resource versions.
+     * Valid versions come first, in version order; invalid versions come last,
+     * in string order. Mixing both orders in a single comparison would not be transitive.
+     */
+    private static int compareVersions(String v1, String v2) {
+        final Version version1 = parseVersion(v1);
+        final Version version2 = parseVersion(v2);
+        if (version1 != null && version2 != null) {
+            return version1.compareTo(version2);
+        }
+        if (version1 != null) {
+            return -1;
+        }
+        if (version2 != null) {
+            return 1;
+        }
+        return v1.compareTo(v2);
+    }
+
+    private static Version parseVersion(String version) {
+        try {
+            return Version.parseVersion(version);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Output stream comparing bytes written with an input stream content.
+     */
+    private static final class ContentComparison extends OutputStream {
+        private final InputStream in;
+        private final byte[] buf = new byte[8192];
+        private boolean equal = true;
+
+        ContentComparison(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (equal && in.read() != (b & 0xff)) {
+                equal = false;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (equal && len > 0) {
+                final int n = in.read(buf, 0, Math.min(len, buf.length));
+                if (n == -1) {
+                    equal = false;
+                    break;
+                }
+                for (int i = 0; i < n; ++i) {
+                    if (buf[i] != b[off + i]) {
+                        equal = false;
+                        break;
+                    }
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        boolean isEqual() throws IOException {
+            return equal && in.read() == -1;
+        }
+    }
+
+    /**
+     * Per-thread state used when reading artifacts.
+     */
+    private static final class Worker {
+        final MessageDigest md;
+        final byte[] buf = new byte[65536];
+
+        Worker() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Failed to compute checksums using SHA-256", e);
+            }
+        }
+    }
+
+    /**
+     * Manifests read from an artifact.
+     */
+    private static final class Manifests {
+        Manifest bundle;
+        Manifest subsystem;
+    }
+
+    /**
+     * Progress of an indexing run, reported to the progress listener.
+     */
+    private static final class Progress {
+        /**
+         * Number of artifacts to read, or <code>-1</code> if unknown.
+         */
+        final int total;
+        final AtomicInteger indexed = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+
+        Progress(final int total) {
+            this.total = total;
+        }
+    }
+
+    /**
+     * Artifact to index.
+     */
+    private static final class ArtifactTask {
+        final Path file;
+        final String url;
+        final BasicFileAttributes attrs;
+        Resource resource;
+
+        ArtifactTask(final Path file, final String url, final BasicFileAttributes attrs) {
+            this.file = file;
+            this.url = url;
+            this.attrs = attrs;
+        }
+
+        ArtifactTask call(Worker worker) throws IOException {
+            resource = indexArtifact(file, url, attrs, worker);
+            return this;
+        }
+    }
+
     static class Resource {
         String url;
         long fileSize;
+        long lastModified;
         String checksum;
         Resource.Type type;
         String symbolicName;
         String version;
+        /**
+         * Capabilities, besides identity and content.
+         */
+        List<Capability> capabilities = Collections.emptyList();
+        List<Capability> requirements = Collections.emptyList();
+
+        /**
+         * Copy this resource, with a different URL.
+         *
+         * @param newUrl resource URL
+         * @return resource copy
+         */
+        Resource withUrl(String newUrl) {
+            final Resource rsc = new Resource();
+            rsc.url = newUrl;
+            rsc.fileSize = fileSize;
+            rsc.lastModified = lastModified;
+            rsc.checksum = checksum;
+            rsc.type = type;
+            rsc.symbolicName = symbolicName;
+            rsc.version = version;
+            rsc.capabilities = capabilities;
+            rsc.requirements = requirements;
+            return rsc;
+        }
 
         enum Type {
             BUNDLE("osgi.bundle", "application/vnd.osgi.bundle"),
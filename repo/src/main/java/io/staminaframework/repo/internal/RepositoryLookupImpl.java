@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import io.staminaframework.repo.RepositoryLookup;
+import io.staminaframework.repo.RepositoryResource;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * {@link RepositoryLookup} implementation, backed by the index currently served to clients.
+ *
+ * @author Stamina Framework developers
+ */
+final class RepositoryLookupImpl implements RepositoryLookup {
+    private final String repositoryId;
+    private final Supplier<IndexSnapshot> index;
+    private final boolean contentAddressed;
+
+    RepositoryLookupImpl(final String repositoryId, final Supplier<IndexSnapshot> index,
+                         final boolean contentAddressed) {
+        this.repositoryId = repositoryId;
+        this.index = index;
+        this.contentAddressed = contentAddressed;
+    }
+
+    @Override
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    @Override
+    public List<RepositoryResource> find(String symbolicName, String versionRange) {
+        final IndexSnapshot snapshot = index.get();
+        if (snapshot == null || symbolicName == null) {
+            return Collections.emptyList();
+        }
+        final List<RepositoryIndexer.Resource> matches =
+                snapshot.find(symbolicName, versionRange == null ? null : new VersionRange(versionRange));
+        final List<RepositoryResource> resources = new ArrayList<>(matches.size());
+        for (final RepositoryIndexer.Resource rsc : matches) {
+            // Resources are found using the same URL as in the index.
+            final String url = contentAddressed
+                    ? ContentAddressing.contentUrl(rsc.checksum) : rsc.url.replace(File.separatorChar, '/');
+            resources.add(new RepositoryResource(rsc.symbolicName, Version.parseVersion(rsc.version),
+                    rsc.type.osgiType, url, rsc.checksum, rsc.fileSize));
+        }
+        return resources;
+    }
+}
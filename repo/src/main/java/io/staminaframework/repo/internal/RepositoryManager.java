@@ -16,9 +16,12 @@
 
 package io.staminaframework.repo.internal;
 
+import io.staminaframework.repo.RepositoryLookup;
+import io.staminaframework.repo.RepositoryMetrics;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.ComponentFactory;
 import org.osgi.service.component.ComponentInstance;
@@ -27,20 +30,17 @@ import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
 import org.osgi.service.log.LogService;
 
 import javax.servlet.Servlet;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.file.*;
-import java.util.Dictionary;
-import java.util.Hashtable;
-import java.util.concurrent.Executors;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-import static java.nio.file.StandardWatchEventKinds.*;
-
 /**
  * This component handles a repository path.
  *
@@ -49,8 +49,21 @@ import static java.nio.file.StandardWatchEventKinds.*;
 @Component(configurationPid = "io.staminaframework.repo",
         configurationPolicy = ConfigurationPolicy.REQUIRE)
 public class RepositoryManager {
+    private static final String INDEX_FILE = "obr.xml";
+    private static final String COMPRESSED_INDEX_FILE = INDEX_FILE + ".gz";
+    private static final String BINARY_INDEX_FILE = "obr.idx";
+    private static final long INITIAL_SCRUB_DELAY = 60 * 1000;
+    /**
+     * Suffix of the identifier used to submit verification slices to the indexing scheduler.
+     */
+    private static final String SCRUB_JOB_SUFFIX = "/scrub";
+
     /**
      * Component configuration.
+     * <p>
+     * Metadata for every artifact of the repository is kept in memory while indexing:
+     * this component has no bounded indexing mode. Repositories too large for the Java heap
+     * must be indexed using <code>repo:index --streaming</code>, which uses a bounded amount of memory.
      *
      * @author Stamina Framework developers
      */
@@ -69,19 +82,145 @@ public class RepositoryManager {
          * Repository name (may be <code>null</code> or empty).
          */
         String name() default "";
+
+        /**
+         * Number of threads used to index artifacts
+         * (defaults to the number of available processors).
+         */
+        int indexThreads() default 0;
+
+        /**
+         * Delay in milliseconds to wait for repository changes to settle down
+         * before indexing.
+         */
+        long indexDebounceDelay() default 1000;
+
+        /**
+         * Maximum delay in milliseconds between a repository change and indexing,
+         * even if repository changes keep on coming.
+         */
+        long indexMaxLatency() default 10000;
+
+        /**
+         * <code>Cache-Control</code> header value sent with the repository index
+         * (may be empty).
+         */
+        String indexCacheControl() default "no-cache";
+
+        /**
+         * <code>Cache-Control</code> header value sent with artifacts (may be empty).
+         * Setting a long <code>max-age</code> is safe for repositories
+         * which never overwrite versioned artifacts.
+         */
+        String artifactCacheControl() default "";
+
+        /**
+         * Set to <code>true</code> to send artifact content without copying it
+         * through the Java heap, when the HTTP container allows it.
+         */
+        boolean zeroCopyTransfer() default true;
+
+        /**
+         * Maximum number of artifacts for which metadata is kept in memory
+         * by the repository servlet.
+         */
+        int artifactCacheSize() default 10000;
+
+        /**
+         * Number of index generations for which changes are kept in memory,
+         * so that clients may only download changes made since a previous index.
+         */
+        int indexHistorySize() default 32;
+
+        /**
+         * Set to <code>true</code> to log every artifact request.
+         * Requests are always recorded in repository metrics.
+         */
+        boolean logRequests() default false;
+
+        /**
+         * Set to <code>true</code> to send large artifacts using non-blocking I/O,
+         * so that slow downloads do not hold HTTP container threads.
+         */
+        boolean asyncTransfer() default true;
+
+        /**
+         * Maximum number of artifacts downloaded at the same time from this repository
+         * (set to zero for no limit). Clients are asked to retry later when this limit
+         * is reached. Index requests are never limited.
+         */
+        int maxConcurrentDownloads() default 0;
+
+        /**
+         * Set to <code>true</code> to publish artifacts in the index under
+         * a content-addressed URL (<code>sha256/&lt;checksum&gt;</code>) instead of their path.
+         * Artifacts found several times in the repository are then published once,
+         * and are sent with long-lived cache headers, since their content never changes.
+         * Artifacts are still available from their path.
+         */
+        boolean contentAddressedUrls() default false;
+
+        /**
+         * Delay in seconds before a request waiting for index changes is completed
+         * (set to zero to disable index change notifications).
+         * Clients are expected to send a new request right away: this delay should be shorter
+         * than idle timeouts set by the HTTP container or by proxies.
+         */
+        long indexNotificationTimeout() default 25;
+
+        /**
+         * Maximum number of bytes read per second when verifying artifacts
+         * against their indexed checksum in the background
+         * (set to zero to disable background verification).
+         * These reads are also charged to the read budget shared by indexing runs.
+         */
+        long scrubRate() default 4 * 1024 * 1024;
+
+        /**
+         * Delay in minutes between two background verification passes.
+         */
+        long scrubInterval() default 24 * 60;
     }
 
     @Reference
     private LogService logService;
     @Reference(target = "(" + ComponentConstants.COMPONENT_FACTORY + "=io.staminaframework.repo.servlet)")
     private ComponentFactory componentFactory;
+    @Reference
+    private IndexingScheduler indexingScheduler;
+    @Reference
+    private RepositoryWatcher repositoryWatcher;
+    @Reference
+    private RepositoryRegistry repositoryRegistry;
     private ComponentInstance servletInstance;
-    private ScheduledExecutorService scheduler;
-    private volatile Future<?> indexerTask;
+    private RepositoryMetricsImpl metrics;
+    private ServiceRegistration<RepositoryMetrics> metricsRegistration;
+    private ServiceRegistration<RepositoryLookup> lookupRegistration;
+    private Future<?> indexerTask;
+    private Future<?> scrubberTask;
+    private boolean stopped;
+    private ArtifactScrubber scrubber;
+    private long scrubInterval;
+    private Path quarantineFile;
+    private final Object pendingChangesLock = new Object();
+    private Set<Path> pendingChanges = new HashSet<>(16);
+    private boolean fullScanPending = true;
+    private boolean indexing;
+    /**
+     * Fingerprint of index files published by the last run of this component,
+     * or <code>null</code> if existing index files must be compared.
+     */
+    private String indexFingerprint;
+    private long firstPendingChangeTime = -1;
+    private long indexDebounceDelay;
+    private long indexMaxLatency;
     private Path repositoryDir;
     private String repositoryName;
     private String repositoryId;
-    private Thread repositoryWatcher;
+    private int indexThreads;
+    private boolean contentAddressed;
+    private Path indexCacheFile;
+    private IndexCache indexCache;
 
     @Activate
     void activate(BundleContext bundleContext, Config config) throws IOException, InvalidSyntaxException {
@@ -95,12 +234,23 @@ public class RepositoryManager {
         repositoryId = config.id();
         repositoryDir = FileSystems.getDefault().getPath(config.path());
         repositoryName = config.name();
+        indexThreads = config.indexThreads();
+        contentAddressed = config.contentAddressedUrls();
+        indexDebounceDelay = Math.max(0, config.indexDebounceDelay());
+        indexMaxLatency = Math.max(indexDebounceDelay, config.indexMaxLatency());
         if (!Files.exists(repositoryDir)) {
             logService.log(LogService.LOG_INFO, "Creating repository directory: " + repositoryDir);
             Files.createDirectories(repositoryDir);
         }
         repositoryDir = repositoryDir.toRealPath();
 
+        // Artifact metadata is cached in the bundle data area, so that
+        // it survives restarts without polluting the repository directory.
+        final File dataFile = bundleContext.getDataFile("index-" + repositoryId + ".cache");
+        indexCacheFile = dataFile == null ? null : dataFile.toPath();
+        final File quarantineDataFile = bundleContext.getDataFile("quarantine-" + repositoryId + ".dat");
+        quarantineFile = quarantineDataFile == null ? null : quarantineDataFile.toPath();
+
         // Check if a servlet exists with this name.
         final ServiceReference<?>[] servletRefs =
                 bundleContext.getAllServiceReferences(Servlet.class.getName(), "(repository.id=" + repositoryId + ")");
@@ -108,43 +258,81 @@ public class RepositoryManager {
             throw new IllegalArgumentException("Already existing repository id: " + repositoryId);
         }
 
-        final Dictionary<String, Object> servletProps = new Hashtable<>(4);
+        final Dictionary<String, Object> servletProps = new Hashtable<>(16);
         servletProps.put("repository.path", repositoryDir.toString());
         servletProps.put("repository.id", repositoryId);
+        servletProps.put("repository.cache-control.index", config.indexCacheControl());
+        servletProps.put("repository.cache-control.artifact", config.artifactCacheControl());
+        servletProps.put("repository.zero-copy", config.zeroCopyTransfer());
+        servletProps.put("repository.artifact-cache-size", config.artifactCacheSize());
+        servletProps.put("repository.index-history-size", config.indexHistorySize());
+        servletProps.put("repository.log-requests", config.logRequests());
+        servletProps.put("repository.async-transfer", config.asyncTransfer());
+        servletProps.put("repository.max-concurrent-downloads", config.maxConcurrentDownloads());
+        servletProps.put("repository.content-addressed", config.contentAddressedUrls());
+        servletProps.put("repository.notification-timeout", config.indexNotificationTimeout());
+        // Asynchronous requests are also used to hold clients waiting for index changes.
+        servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED, true);
         servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN, "/" + repositoryId + "/*");
         servletProps.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_NAME, "io.staminaframework.repo");
         logService.log(LogService.LOG_INFO, "Creating repository servlet: " + repositoryId);
         servletInstance = componentFactory.newInstance(servletProps);
+        metrics = ((RepositoryServlet) servletInstance.getInstance()).getMetrics();
+        final Dictionary<String, Object> metricsProps = new Hashtable<>(1);
+        metricsProps.put(RepositoryMetrics.REPOSITORY_ID, repositoryId);
+        metricsRegistration = bundleContext.registerService(RepositoryMetrics.class, metrics, metricsProps);
+        final Dictionary<String, Object> lookupProps = new Hashtable<>(1);
+        lookupProps.put(RepositoryLookup.REPOSITORY_ID, repositoryId);
+        lookupRegistration = bundleContext.registerService(RepositoryLookup.class,
+                ((RepositoryServlet) servletInstance.getInstance()).getLookup(), lookupProps);
+        ((RepositoryServlet) servletInstance.getInstance()).getQuarantine().load(quarantineFile);
 
-        scheduler = Executors.newScheduledThreadPool(1, r -> {
-            final Thread t = new Thread(r, "Stamina Repository Indexer: " + repositoryId);
-            t.setDaemon(false);
-            t.setPriority(Thread.NORM_PRIORITY);
-            return t;
-        });
+        synchronized (pendingChangesLock) {
+            stopped = false;
+        }
+        repositoryWatcher.watch(repositoryDir, this::repositoryChanged);
+        scheduleIndexRepository(null);
 
-        repositoryWatcher = new RepositoryWatcher();
-        repositoryWatcher.start();
-        scheduleIndexRepository();
+        if (config.scrubRate() > 0) {
+            scrubber = new ArtifactScrubber(repositoryDir, config.scrubRate(), indexingScheduler.getIoBudget());
+            scrubInterval = TimeUnit.MINUTES.toMillis(Math.max(1, config.scrubInterval()));
+            synchronized (pendingChangesLock) {
+                // First pass is delayed, so that it does not compete with the initial indexing run.
+                scrubberTask = indexingScheduler.schedule(
+                        this::submitScrubSlice, INITIAL_SCRUB_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     @Deactivate
     void deactivate() {
-        if (repositoryWatcher != null) {
-            repositoryWatcher.interrupt();
-            try {
-                repositoryWatcher.join(1000 * 4);
-            } catch (InterruptedException ignore) {
-            }
-            repositoryWatcher = null;
+        if (repositoryDir != null) {
+            repositoryWatcher.unwatch(repositoryDir);
         }
-        if (scheduler != null) {
-            scheduler.shutdown();
-            try {
-                scheduler.awaitTermination(1000, TimeUnit.SECONDS);
-            } catch (InterruptedException ignore) {
+        synchronized (pendingChangesLock) {
+            // Scheduler is shared with other repositories: pending tasks must not be run.
+            stopped = true;
+            if (indexerTask != null) {
+                indexerTask.cancel(false);
+                indexerTask = null;
+            }
+            if (scrubberTask != null) {
+                scrubberTask.cancel(false);
+                scrubberTask = null;
             }
-            scheduler = null;
+        }
+        if (repositoryId != null) {
+            indexingScheduler.cancel(repositoryId);
+            indexingScheduler.cancel(repositoryId + SCRUB_JOB_SUFFIX);
+            repositoryRegistry.remove(repositoryId);
+        }
+        if (lookupRegistration != null) {
+            lookupRegistration.unregister();
+            lookupRegistration = null;
+        }
+        if (metricsRegistration != null) {
+            metricsRegistration.unregister();
+            metricsRegistration = null;
         }
         if (servletInstance != null) {
             servletInstance.dispose();
@@ -152,86 +340,296 @@ public class RepositoryManager {
         }
     }
 
-    private void scheduleIndexRepository() {
-        if (indexerTask != null) {
-            indexerTask.cancel(true);
+    /**
+     * Schedule repository indexing.
+     * Changes are coalesced until no new change is reported during the debounce delay,
+     * or until the maximum indexing latency is reached.
+     *
+     * @param changedPaths paths which were changed, or <code>null</code> if
+     *                     the whole repository must be scanned
+     */
+    private void scheduleIndexRepository(Collection<Path> changedPaths) {
+        final RepositoryServlet repoServlet;
+        synchronized (pendingChangesLock) {
+            if (stopped) {
+                return;
+            }
+            repoServlet = (RepositoryServlet) servletInstance.getInstance();
+        }
+        // Metadata cached by the servlet is dropped right away,
+        // without waiting for the repository to be indexed again.
+        if (repoServlet != null) {
+            repoServlet.invalidateArtifacts(changedPaths);
+        }
+
+        synchronized (pendingChangesLock) {
+            if (changedPaths == null) {
+                fullScanPending = true;
+                pendingChanges.clear();
+            } else if (!fullScanPending) {
+                pendingChanges.addAll(changedPaths);
+            }
+
+            final long now = System.nanoTime();
+            if (firstPendingChangeTime == -1) {
+                firstPendingChangeTime = now;
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(now - firstPendingChangeTime);
+            final long delay = Math.min(indexDebounceDelay, Math.max(0, indexMaxLatency - elapsed));
+
+            // A running indexing task is not interrupted:
+            // pending changes will be handled by the next one.
+            if (stopped) {
+                return;
+            }
+            if (indexerTask != null) {
+                indexerTask.cancel(false);
+            }
+            logService.log(LogService.LOG_DEBUG, "Scheduling repository indexing: " + repositoryDir);
+            metrics.recordDebounceDelay(delay);
+            // Once changes are settled, indexing is queued with other repositories.
+            indexerTask = indexingScheduler.schedule(() -> indexingScheduler.submit(
+                    repositoryId, this::pendingChangeCount, this::indexRepository), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Handle changes reported by the repository watcher.
+     *
+     * @param changedPaths paths which were changed, or <code>null</code> if
+     *                     the whole repository must be scanned
+     */
+    private void repositoryChanged(Set<Path> changedPaths) {
+        if (changedPaths == null) {
+            scheduleIndexRepository(null);
+            return;
+        }
+        changedPaths.removeIf(RepositoryManager::isIndexFile);
+        if (!changedPaths.isEmpty()) {
+            scheduleIndexRepository(changedPaths);
+        }
+    }
+
+    private int pendingChangeCount() {
+        synchronized (pendingChangesLock) {
+            return fullScanPending ? -1 : pendingChanges.size();
         }
-        logService.log(LogService.LOG_DEBUG, "Scheduling repository indexing: " + repositoryDir);
-        indexerTask = scheduler.schedule(this::indexRepository, 1, TimeUnit.SECONDS);
     }
 
     private void indexRepository() {
-        final RepositoryServlet repoServlet = (RepositoryServlet) servletInstance.getInstance();
-        if (repoServlet == null) {
-            return;
+        final Set<Path> changedPaths;
+        final RepositoryServlet repoServlet;
+        synchronized (pendingChangesLock) {
+            if (stopped) {
+                return;
+            }
+            repoServlet = (RepositoryServlet) servletInstance.getInstance();
+            if (repoServlet == null) {
+                return;
+            }
+            if (fullScanPending) {
+                changedPaths = null;
+            } else if (pendingChanges.isEmpty()) {
+                return;
+            } else {
+                changedPaths = pendingChanges;
+            }
+            if (firstPendingChangeTime != -1) {
+                metrics.recordQueueDelay(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstPendingChangeTime));
+            }
+            pendingChanges = new HashSet<>(16);
+            fullScanPending = false;
+            firstPendingChangeTime = -1;
+            indexing = true;
         }
-        repoServlet.setEnabled(false);
+        try {
+            indexRepository(repoServlet, changedPaths);
+        } finally {
+            synchronized (pendingChangesLock) {
+                indexing = false;
+            }
+        }
+    }
+
+    private void indexRepository(RepositoryServlet repoServlet, Set<Path> changedPaths) {
         logService.log(LogService.LOG_INFO, "Indexing repository: " + repositoryDir);
+        if (indexCache == null) {
+            indexCache = IndexCache.load(indexCacheFile);
+        }
 
-        final RepositoryIndexer indexer = new RepositoryIndexer();
-        Path repositoryFile = null;
-        boolean keepIndexFile = false;
+        // Clients keep on using current index while a new one is being built:
+        // the new index is written to a temporary file, which is then atomically
+        // moved to its final location before being published to the servlet.
+        final long start = System.nanoTime();
+        final RepositoryIndexer indexer = new RepositoryIndexer(indexThreads, false, indexingScheduler.getIoBudget());
+        boolean indexed = false;
         try {
-            repositoryFile = Files.createTempFile("obr-", ".xml");
-            indexer.indexRepository(repositoryDir, repositoryFile, repositoryName);
-            repositoryFile = Files.move(repositoryFile, repositoryDir.resolve("obr.xml"), REPLACE_EXISTING, ATOMIC_MOVE);
-            keepIndexFile = true;
-        } catch (ClosedByInterruptException ignore) {
+            final List<RepositoryIndexer.Resource> resources =
+                    indexer.scanRepository(repositoryDir, indexCache, changedPaths);
+            final Quarantine quarantine = repoServlet.getQuarantine();
+            if (!quarantine.isEmpty()) {
+                // Quarantined artifacts are left out of the index,
+                // unless they were replaced or removed since.
+                final Set<String> quarantinedUrls = quarantine.urls();
+                final Set<String> urls = new HashSet<>(resources.size());
+                for (final RepositoryIndexer.Resource rsc : resources) {
+                    urls.add(rsc.url);
+                }
+                quarantine.retainAll(urls);
+                resources.removeIf(rsc -> quarantine.contains(rsc.url, rsc.fileSize, rsc.lastModified));
+                if (!quarantinedUrls.equals(quarantine.urls())) {
+                    storeQuarantine(quarantine);
+                }
+            }
+            final Path indexFile = repositoryDir.resolve(INDEX_FILE);
+            final List<RepositoryIndexer.Resource> published =
+                    contentAddressed ? ContentAddressing.publish(resources) : resources;
+            final String fingerprint = ObrWriter.fingerprint(repositoryName, published);
+            final IndexSnapshot currentSnapshot = repoServlet.getIndex();
+            final boolean written = RepositoryIndexer.publishIndex(indexFile, repositoryName, published,
+                    fingerprint, currentSnapshot == null ? null : indexFingerprint);
+            indexFingerprint = fingerprint;
+            final IndexSnapshot snapshot;
+            if (written || currentSnapshot == null) {
+                snapshot = IndexSnapshot.load(indexFile, resources);
+            } else {
+                // Index content is unchanged: current index file is kept as is,
+                // so that clients do not download it again.
+                logService.log(LogService.LOG_DEBUG, "Repository index is up-to-date: " + repositoryDir);
+                snapshot = currentSnapshot.withResources(resources);
+            }
+            indexed = true;
+            repoServlet.commitIndex(snapshot);
+            repositoryRegistry.commit(repositoryId, snapshot);
+            if (indexCacheFile != null) {
+                indexCache.store(indexCacheFile);
+            }
+            metrics.recordIndexRun(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    indexer.getFilesHashed(), indexer.getBytesHashed(), indexer.getCacheHits());
+        } catch (ClosedByInterruptException | InterruptedIOException ignore) {
         } catch (IOException e) {
             logService.log(LogService.LOG_WARNING,
                     "Error while indexing repository: " + repositoryDir, e);
         }
-        if (!keepIndexFile) {
-            try {
-                Files.deleteIfExists(repositoryFile);
-            } catch (IOException ignore) {
+        if (!indexed) {
+            metrics.recordIndexFailure();
+            // Changes may have been lost: make sure next run scans the whole repository.
+            // Index files may have been left in any state.
+            indexFingerprint = null;
+            synchronized (pendingChangesLock) {
+                fullScanPending = true;
+                pendingChanges.clear();
             }
         }
-        repoServlet.setEnabled(true);
     }
 
-    private class RepositoryWatcher extends Thread {
-        public RepositoryWatcher() {
-            super();
-            setName("Stamina Repository Watcher: " + repositoryId);
-            setPriority(Thread.MIN_PRIORITY);
-            setDaemon(true);
-        }
-
-        @Override
-        public void run() {
-            try (final WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                logService.log(LogService.LOG_INFO, "Monitoring repository: " + repositoryDir);
-                repositoryDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-
-                boolean running = true;
-                while (running) {
-                    try {
-                        final WatchKey key = watchService.take();
-                        boolean readyToIndex = true;
-                        for (final WatchEvent<?> e : key.pollEvents()) {
-                            if (e.kind() == OVERFLOW) {
-                                readyToIndex = false;
-                                break;
-                            }
-                            final WatchEvent<Path> ev = (WatchEvent<Path>) e;
-                            if ("obr.xml".equals(ev.context().toString())) {
-                                readyToIndex = false;
-                                break;
-                            }
-                        }
-                        if (readyToIndex) {
-                            scheduleIndexRepository();
-                        }
-                        key.reset();
-                    } catch (ClosedWatchServiceException | InterruptedException e) {
-                        running = false;
-                    }
+    /**
+     * Submit a verification slice to the indexing scheduler:
+     * slices are not run on the shared timer thread, since these read artifacts.
+     */
+    private void submitScrubSlice() {
+        synchronized (pendingChangesLock) {
+            if (stopped) {
+                return;
+            }
+        }
+        // Slices are queued as full scans, so that small updates are indexed first.
+        indexingScheduler.submit(repositoryId + SCRUB_JOB_SUFFIX, () -> -1, this::scrubRepository);
+    }
+
+    /**
+     * Verify artifacts against their indexed checksum, for a single slice.
+     * Artifacts which do not match are quarantined, and the repository is indexed again
+     * so that they are left out of the index.
+     */
+    private void scrubRepository() {
+        final RepositoryServlet repoServlet;
+        long delay;
+        synchronized (pendingChangesLock) {
+            if (stopped) {
+                return;
+            }
+            repoServlet = (RepositoryServlet) servletInstance.getInstance();
+            if (repoServlet == null) {
+                return;
+            }
+            // Indexing comes first: verification is resumed once the repository is indexed.
+            // Slices are never run while this repository is being indexed, since both
+            // update quarantined artifacts.
+            delay = firstPendingChangeTime == -1 && !indexing ? 0 : indexMaxLatency;
+        }
+        if (delay == 0) {
+            final IndexSnapshot index = repoServlet.getIndex();
+            if (!scrubber.isPassRunning()) {
+                if (index == null || index.resources.isEmpty()) {
+                    delay = scrubInterval;
+                } else {
+                    logService.log(LogService.LOG_DEBUG, "Verifying repository artifacts: " + repositoryDir);
+                    scrubber.startPass(index.resources.values());
                 }
-            } catch (IOException e) {
-                logService.log(LogService.LOG_ERROR,
-                        "Failed to initialize repository monitoring: " + repositoryDir, e);
             }
+            if (scrubber.isPassRunning()) {
+                delay = scrubArtifacts(repoServlet);
+            }
+        }
+        synchronized (pendingChangesLock) {
+            if (!stopped) {
+                scrubberTask = indexingScheduler.schedule(this::submitScrubSlice, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private long scrubArtifacts(RepositoryServlet repoServlet) {
+        final Quarantine quarantine = repoServlet.getQuarantine();
+        final Set<Path> quarantinedFiles = new HashSet<>(1);
+        long delay;
+        try {
+            delay = scrubber.verify(rsc -> {
+                logService.log(LogService.LOG_WARNING,
+                        "Artifact does not match its indexed checksum, moving to quarantine: "
+                                + repositoryDir.resolve(rsc.url));
+                quarantine.add(rsc);
+                quarantinedFiles.add(repositoryDir.resolve(rsc.url));
+            });
+        } catch (ClosedByInterruptException | InterruptedIOException e) {
+            delay = -1;
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING,
+                    "Error while verifying repository artifacts: " + repositoryDir, e);
+            delay = -1;
+        }
+        metrics.recordScrubProgress(scrubber.getLastSliceBytes(), scrubber.getProgress());
+
+        if (!quarantinedFiles.isEmpty()) {
+            storeQuarantine(quarantine);
+            scheduleIndexRepository(quarantinedFiles);
+        }
+        if (delay == -1) {
+            if (!scrubber.isPassRunning()) {
+                metrics.recordScrubPass();
+                logService.log(LogService.LOG_INFO, "Repository artifacts verified: " + repositoryDir
+                        + " (" + scrubber.getArtifactCount() + " artifacts, "
+                        + quarantine.urls().size() + " in quarantine)");
+            }
+            delay = scrubInterval;
         }
+        return delay;
+    }
+
+    private void storeQuarantine(Quarantine quarantine) {
+        if (quarantineFile == null) {
+            return;
+        }
+        try {
+            quarantine.store(quarantineFile);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to store quarantined artifacts: " + repositoryDir, e);
+        }
+    }
+
+    private static boolean isIndexFile(Path file) {
+        final String fileName = file.getFileName().toString();
+        return INDEX_FILE.equals(fileName) || COMPRESSED_INDEX_FILE.equals(fileName)
+                || BINARY_INDEX_FILE.equals(fileName) || fileName.startsWith(RepositoryIndexer.TEMP_FILE_PREFIX);
     }
 }
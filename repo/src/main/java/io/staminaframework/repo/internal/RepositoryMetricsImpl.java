@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import io.staminaframework.repo.RepositoryMetrics;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RepositoryMetrics} implementation.
+ * Request metrics are recorded using lock-free counters, without allocating memory
+ * (except the first time an artifact is downloaded).
+ *
+ * @author Stamina Framework developers
+ */
+final class RepositoryMetricsImpl implements RepositoryMetrics {
+    /**
+     * Maximum number of artifacts for which downloads are counted.
+     */
+    private static final int MAX_TRACKED_ARTIFACTS = 10000;
+    /**
+     * Request rate is computed over this number of one-second slots.
+     */
+    private static final int RATE_SLOTS = 60;
+
+    private final String repositoryId;
+    private final Quarantine quarantine;
+
+    private final LongAdder indexRuns = new LongAdder();
+    private final LongAdder indexFailures = new LongAdder();
+    private volatile long lastIndexDuration;
+    private final LongAdder totalIndexDuration = new LongAdder();
+    private final LongAdder filesHashed = new LongAdder();
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder indexCacheHits = new LongAdder();
+    private volatile long lastQueueDelay;
+    private volatile long lastDebounceDelay;
+    private final LongAdder scrubbedBytes = new LongAdder();
+    private final LongAdder scrubPasses = new LongAdder();
+    private volatile double scrubProgress = 1;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final AtomicLongArray responses = new AtomicLongArray(600);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLongArray rateSlotSeconds = new AtomicLongArray(RATE_SLOTS);
+    private final AtomicLongArray rateSlotCounts = new AtomicLongArray(RATE_SLOTS);
+    private final Map<String, LongAdder> downloads = new ConcurrentHashMap<>(64);
+
+    RepositoryMetricsImpl(final String repositoryId, final Quarantine quarantine) {
+        this.repositoryId = repositoryId;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Record a completed indexing run.
+     *
+     * @param durationMillis indexing duration
+     * @param files          number of artifacts read
+     * @param bytes          number of bytes read
+     * @param cacheHits      number of artifacts found in cache
+     */
+    void recordIndexRun(long durationMillis, long files, long bytes, long cacheHits) {
+        indexRuns.increment();
+        lastIndexDuration = durationMillis;
+        totalIndexDuration.add(durationMillis);
+        filesHashed.add(files);
+        bytesHashed.add(bytes);
+        indexCacheHits.add(cacheHits);
+    }
+
+    void recordIndexFailure() {
+        indexFailures.increment();
+    }
+
+    void recordQueueDelay(long delayMillis) {
+        lastQueueDelay = delayMillis;
+    }
+
+    void recordDebounceDelay(long delayMillis) {
+        lastDebounceDelay = delayMillis;
+    }
+
+    /**
+     * Record progress of a background verification pass.
+     *
+     * @param bytes    number of bytes read since last progress was recorded
+     * @param progress pass progress, between 0 and 1
+     */
+    void recordScrubProgress(long bytes, double progress) {
+        scrubbedBytes.add(bytes);
+        scrubProgress = progress;
+    }
+
+    void recordScrubPass() {
+        scrubPasses.increment();
+        scrubProgress = 1;
+    }
+
+    /**
+     * Record a handled request.
+     *
+     * @param status       response status code
+     * @param elapsedNanos request handling duration
+     */
+    void recordRequest(int status, long elapsedNanos) {
+        requests.increment();
+        if (status >= 0 && status < responses.length()) {
+            responses.incrementAndGet(status);
+        }
+        latencies.record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final int slot = (int) Math.floorMod(second, (long) RATE_SLOTS);
+        final long slotSecond = rateSlotSeconds.get(slot);
+        if (slotSecond != second && rateSlotSeconds.compareAndSet(slot, slotSecond, second)) {
+            // A few concurrent requests may be missed while a slot is recycled: rate is an estimate.
+            rateSlotCounts.set(slot, 0);
+        }
+        rateSlotCounts.incrementAndGet(slot);
+    }
+
+    void recordBytesServed(long bytes) {
+        bytesServed.add(bytes);
+    }
+
+    /**
+     * Record an artifact download.
+     *
+     * @param path artifact path, relative to the repository directory
+     */
+    void recordDownload(String path) {
+        LongAdder counter = downloads.get(path);
+        if (counter == null) {
+            if (downloads.size() >= MAX_TRACKED_ARTIFACTS) {
+                return;
+            }
+            counter = downloads.computeIfAbsent(path, p -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    @Override
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    @Override
+    public long getIndexRunCount() {
+        return indexRuns.sum();
+    }
+
+    @Override
+    public long getIndexFailureCount() {
+        return indexFailures.sum();
+    }
+
+    @Override
+    public long getLastIndexDuration() {
+        return lastIndexDuration;
+    }
+
+    @Override
+    public long getTotalIndexDuration() {
+        return totalIndexDuration.sum();
+    }
+
+    @Override
+    public long getFilesHashed() {
+        return filesHashed.sum();
+    }
+
+    @Override
+    public long getBytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    @Override
+    public double getIndexCacheHitRatio() {
+        final long hits = indexCacheHits.sum();
+        final long total = hits + filesHashed.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getLastQueueDelay() {
+        return lastQueueDelay;
+    }
+
+    @Override
+    public long getLastDebounceDelay() {
+        return lastDebounceDelay;
+    }
+
+    @Override
+    public long getScrubbedBytes() {
+        return scrubbedBytes.sum();
+    }
+
+    @Override
+    public long getScrubPassCount() {
+        return scrubPasses.sum();
+    }
+
+    @Override
+    public double getScrubProgress() {
+        return scrubProgress;
+    }
+
+    @Override
+    public Set<String> getQuarantinedArtifacts() {
+        return quarantine.urls();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public double getRequestRate() {
+        final long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long count = 0;
+        for (int i = 0; i < RATE_SLOTS; ++i) {
+            final long slotSecond = rateSlotSeconds.get(i);
+            if (slotSecond > now - RATE_SLOTS && slotSecond <= now) {
+                count += rateSlotCounts.get(i);
+            }
+        }
+        return (double) count / RATE_SLOTS;
+    }
+
+    @Override
+    public long getRequestLatency(double percentile) {
+        return latencies.percentile(percentile);
+    }
+
+    @Override
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    @Override
+    public long getResponseCount(int status) {
+        return status >= 0 && status < responses.length() ? responses.get(status) : 0;
+    }
+
+    @Override
+    public Map<String, Long> getTopArtifacts(int count) {
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(downloads.size());
+        for (final Map.Entry<String, LongAdder> e : downloads.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().sum()));
+        }
+        entries.sort((e1, e2) -> {
+            final int c = Long.compare(e2.getValue(), e1.getValue());
+            return c != 0 ? c : e1.getKey().compareTo(e2.getKey());
+        });
+        final Map<String, Long> top = new LinkedHashMap<>(Math.max(0, count) * 2);
+        for (int i = 0; i < entries.size() && i < count; ++i) {
+            top.put(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        return top;
+    }
+}
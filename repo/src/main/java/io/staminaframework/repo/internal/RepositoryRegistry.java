@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.repo.internal;
+
+import org.osgi.service.component.annotations.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This component keeps track of the index currently published by every repository,
+ * so that composite repositories are updated without reading member indexes again.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = RepositoryRegistry.class)
+public class RepositoryRegistry {
+    /**
+     * Listener notified when a repository index is committed.
+     */
+    interface Listener {
+        /**
+         * Invoked after a repository index is committed.
+         *
+         * @param repositoryId repository identifier
+         * @param index        committed index, or <code>null</code> if the repository was removed
+         */
+        void indexCommitted(String repositoryId, IndexSnapshot index);
+    }
+
+    private final Map<String, IndexSnapshot> indexes = new ConcurrentHashMap<>(16);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Record an index committed by a repository.
+     *
+     * @param repositoryId repository identifier
+     * @param index        committed index
+     */
+    public void commit(String repositoryId, IndexSnapshot index) {
+        if (index == null) {
+            remove(repositoryId);
+            return;
+        }
+        final IndexSnapshot previousIndex = indexes.put(repositoryId, index);
+        if (previousIndex != index) {
+            for (final Listener listener : listeners) {
+                listener.indexCommitted(repositoryId, index);
+            }
+        }
+    }
+
+    /**
+     * Forget a repository.
+     *
+     * @param repositoryId repository identifier
+     */
+    public void remove(String repositoryId) {
+        if (indexes.remove(repositoryId) != null) {
+            for (final Listener listener : listeners) {
+                listener.indexCommitted(repositoryId, null);
+            }
+        }
+    }
+
+    /**
+     * Get the index currently published by a repository.
+     *
+     * @param repositoryId repository identifier
+     * @return index snapshot, or <code>null</code> if this repository has no index
+     */
+    public IndexSnapshot getIndex(String repositoryId) {
+        return indexes.get(repositoryId);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -16,8 +16,10 @@
 
 package io.staminaframework.repo.internal;
 
+import org.osgi.framework.VersionRange;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.log.LogService;
 
@@ -26,12 +28,25 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Servlet serving repository content.
@@ -41,52 +56,845 @@ import java.util.concurrent.atomic.AtomicBoolean;
 @Component(factory = "io.staminaframework.repo.servlet",
         service = Servlet.class)
 public class RepositoryServlet extends HttpServlet {
+    /**
+     * Artifacts smaller than this size are sent synchronously:
+     * these are usually written at once, without waiting for the client.
+     */
+    private static final long ASYNC_TRANSFER_MIN_SIZE = 1024 * 1024;
+    /**
+     * Delay in seconds sent to clients when too many artifacts are being downloaded.
+     */
+    private static final int RETRY_AFTER = 1;
+    /**
+     * <code>Cache-Control</code> header value sent with content-addressed artifacts,
+     * which never change.
+     */
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    /**
+     * Path where clients wait for index changes.
+     */
+    private static final String INDEX_EVENTS_PATH = "obr.events";
+    /**
+     * Path where clients look up resources.
+     */
+    private static final String LOOKUP_PATH = "obr.lookup";
+
     @Reference
     private LogService logService;
-    private final AtomicBoolean enabled = new AtomicBoolean();
+    private volatile IndexSnapshot index;
     private Path repositoryDir;
+    private String indexCacheControl;
+    private String artifactCacheControl;
+    private boolean zeroCopy;
+    private ArtifactCache artifactCache;
+    private IndexHistory indexHistory;
+    private RepositoryMetricsImpl metrics;
+    private Quarantine quarantine;
+    private boolean logRequests;
+    private boolean asyncTransfer;
+    private boolean contentAddressed;
+    private Semaphore downloadPermits;
+    private IndexNotifier indexNotifier;
+    private RepositoryLookupImpl lookup;
 
     @Activate
     void activate(Map<String, Object> props) {
         final String repositoryPath = (String) props.get("repository.path");
         repositoryDir = FileSystems.getDefault().getPath(repositoryPath);
+        indexCacheControl = (String) props.get("repository.cache-control.index");
+        artifactCacheControl = (String) props.get("repository.cache-control.artifact");
+        zeroCopy = !Boolean.FALSE.equals(props.get("repository.zero-copy"));
+        final Object artifactCacheSize = props.get("repository.artifact-cache-size");
+        artifactCache = new ArtifactCache(artifactCacheSize instanceof Integer ? (Integer) artifactCacheSize : 10000);
+        final Object indexHistorySize = props.get("repository.index-history-size");
+        contentAddressed = Boolean.TRUE.equals(props.get("repository.content-addressed"));
+        indexHistory = new IndexHistory(indexHistorySize instanceof Integer ? (Integer) indexHistorySize : 32,
+                contentAddressed);
+        quarantine = new Quarantine();
+        metrics = new RepositoryMetricsImpl((String) props.get("repository.id"), quarantine);
+        lookup = new RepositoryLookupImpl((String) props.get("repository.id"), this::getIndex, contentAddressed);
+        logRequests = Boolean.TRUE.equals(props.get("repository.log-requests"));
+        asyncTransfer = !Boolean.FALSE.equals(props.get("repository.async-transfer"));
+        final Object maxDownloads = props.get("repository.max-concurrent-downloads");
+        downloadPermits = maxDownloads instanceof Integer && (Integer) maxDownloads > 0
+                ? new Semaphore((Integer) maxDownloads) : null;
+        final Object notificationTimeout = props.get("repository.notification-timeout");
+        final long notificationTimeoutSeconds = notificationTimeout instanceof Long ? (Long) notificationTimeout : 25;
+        indexNotifier = notificationTimeoutSeconds > 0
+                ? new IndexNotifier(TimeUnit.SECONDS.toMillis(notificationTimeoutSeconds)) : null;
+
+        // Serve existing index until repository is indexed again.
+        final Path indexFile = repositoryDir.resolve("obr.xml");
+        if (Files.isRegularFile(indexFile)) {
+            try {
+                index = IndexSnapshot.load(indexFile, Collections.emptyList());
+            } catch (IOException e) {
+                logService.log(LogService.LOG_WARNING, "Failed to read repository index: " + indexFile, e);
+            }
+        }
     }
 
-    public void setEnabled(boolean enabled) {
-        this.enabled.set(enabled);
-        logService.log(LogService.LOG_DEBUG,
-                "Access to repository is " + (enabled ? "enabled" : "disabled") + ": " + repositoryDir);
+    @Deactivate
+    void deactivate() {
+        // Waiting clients would otherwise be held until their request times out.
+        if (indexNotifier != null) {
+            indexNotifier.close();
+        }
+    }
+
+    /**
+     * Get the repository index currently visible to clients.
+     *
+     * @return index snapshot, or <code>null</code> if no index is available
+     */
+    public IndexSnapshot getIndex() {
+        return index;
+    }
+
+    /**
+     * Get metrics for this repository.
+     *
+     * @return repository metrics
+     */
+    public RepositoryMetricsImpl getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get resource lookups for this repository.
+     *
+     * @return resource lookups
+     */
+    public RepositoryLookupImpl getLookup() {
+        return lookup;
+    }
+
+    /**
+     * Get artifacts which must not be served, since their content
+     * does not match their indexed checksum.
+     *
+     * @return quarantined artifacts
+     */
+    public Quarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * Make a new repository index visible to clients.
+     * Requests in progress keep on using the previous index.
+     *
+     * @param index index snapshot
+     */
+    public void commitIndex(IndexSnapshot index) {
+        final IndexSnapshot previousIndex = this.index;
+        indexHistory.commit(previousIndex, index);
+        this.index = index;
+        artifactCache.reset(index, repositoryDir);
+        logService.log(LogService.LOG_DEBUG, "Repository index updated: " + repositoryDir);
+        if (indexNotifier != null && index.increment != -1
+                && (previousIndex == null || previousIndex.increment != index.increment)) {
+            indexNotifier.publish(index.increment);
+        }
+    }
+
+    /**
+     * Drop cached metadata for changed repository paths.
+     *
+     * @param changedPaths changed files or directories,
+     *                     or <code>null</code> to drop all cached metadata
+     */
+    public void invalidateArtifacts(Collection<Path> changedPaths) {
+        if (changedPaths == null) {
+            artifactCache.invalidate("");
+            return;
+        }
+        for (final Path changedPath : changedPaths) {
+            if (changedPath.startsWith(repositoryDir)) {
+                artifactCache.invalidate(toCacheKey(repositoryDir.relativize(changedPath)));
+            }
+        }
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        if (!enabled.get()) {
-            logService.log(LogService.LOG_DEBUG,
-                    "Prevent client from accessing disabled repository servlet: " + repositoryDir);
-            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
-            return;
+        final long start = System.nanoTime();
+        boolean async = false;
+        boolean served = false;
+        try {
+            async = serve(req, resp, start);
+            served = true;
+        } finally {
+            // Asynchronous transfers are recorded once they are over.
+            // Response status is not set yet when serving fails: the container sends an error.
+            if (!async) {
+                metrics.recordRequest(served ? resp.getStatus() : HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        System.nanoTime() - start);
+            }
         }
+    }
 
+    /**
+     * Serve a request.
+     *
+     * @param req   request
+     * @param resp  response
+     * @param start time when request handling started (see {@link System#nanoTime()})
+     * @return <code>true</code> if the response is being sent asynchronously
+     * @throws IOException if response could not be sent
+     */
+    private boolean serve(HttpServletRequest req, HttpServletResponse resp, long start) throws IOException {
         String artifactPath = req.getPathInfo();
         if (artifactPath == null || "/".equals(artifactPath)) {
             resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
-            return;
+            return false;
         }
         if (artifactPath.startsWith("/")) {
             artifactPath = artifactPath.substring(1);
         }
+        if ("obr.xml".equals(artifactPath) || "obr.xml.gz".equals(artifactPath)
+                || "obr.idx".equals(artifactPath)) {
+            serveIndex(req, resp, artifactPath);
+            return false;
+        }
+        if (INDEX_EVENTS_PATH.equals(artifactPath)) {
+            return serveIndexEvents(req, resp);
+        }
+        if (LOOKUP_PATH.equals(artifactPath)) {
+            serveLookup(req, resp);
+            return false;
+        }
+        if (contentAddressed && artifactPath.startsWith(ContentAddressing.URL_PREFIX)) {
+            return serveContent(req, resp, artifactPath.substring(ContentAddressing.URL_PREFIX.length()), start);
+        }
 
-        final Path artifactFile = repositoryDir.resolve(artifactPath);
-        if (!Files.exists(artifactFile)
-                || !Files.isRegularFile(artifactFile)
-                || !artifactFile.toRealPath().startsWith(repositoryDir)) {
+        // Path traversal is checked against the normalized path, without accessing the file system.
+        final Path artifactFile = repositoryDir.resolve(artifactPath).normalize();
+        if (!artifactFile.startsWith(repositoryDir) || artifactFile.equals(repositoryDir)) {
             logService.log(LogService.LOG_WARNING, "Artifact not found: " + artifactFile);
             resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        final String cacheKey = toCacheKey(repositoryDir.relativize(artifactFile));
+        final ArtifactCache.ArtifactInfo info = getArtifactInfo(artifactFile, cacheKey);
+        if (info == null) {
+            if (logRequests) {
+                logService.log(LogService.LOG_INFO, "Artifact not found: " + artifactFile);
+            }
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        return serveArtifact(req, resp, artifactFile, cacheKey, info, artifactCacheControl, start);
+    }
+
+    /**
+     * Serve an artifact from its checksum.
+     * Only indexed artifacts are available: an artifact is not served
+     * if it was changed since it was indexed.
+     *
+     * @param req      request
+     * @param resp     response
+     * @param checksum artifact SHA-256 checksum
+     * @param start    time when request handling started (see {@link System#nanoTime()})
+     * @return <code>true</code> if the response is being sent asynchronously
+     * @throws IOException if response could not be sent
+     */
+    private boolean serveContent(HttpServletRequest req, HttpServletResponse resp,
+                                 String checksum, long start) throws IOException {
+        final IndexSnapshot index = this.index;
+        final RepositoryIndexer.Resource rsc = index == null ? null : index.resourcesByChecksum.get(checksum);
+        if (rsc == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        final Path artifactFile = repositoryDir.resolve(rsc.url);
+        final String cacheKey = toCacheKey(repositoryDir.relativize(artifactFile));
+        final ArtifactCache.ArtifactInfo info = getArtifactInfo(artifactFile, cacheKey);
+        if (info == null || info.size != rsc.fileSize || info.lastModified != rsc.lastModified) {
+            // Content was changed since it was indexed: this URL is not valid anymore.
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        return serveArtifact(req, resp, artifactFile, cacheKey, info, IMMUTABLE_CACHE_CONTROL, start);
+    }
+
+    /**
+     * Serve artifact content.
+     *
+     * @param req          request
+     * @param resp         response
+     * @param artifactFile artifact file
+     * @param cacheKey     artifact path, relative to the repository directory
+     * @param info         artifact metadata
+     * @param cacheControl <code>Cache-Control</code> header value (may be empty)
+     * @param start        time when request handling started (see {@link System#nanoTime()})
+     * @return <code>true</code> if the response is being sent asynchronously
+     * @throws IOException if response could not be sent
+     */
+    private boolean serveArtifact(HttpServletRequest req, HttpServletResponse resp,
+                                  Path artifactFile, String cacheKey, ArtifactCache.ArtifactInfo info,
+                                  String cacheControl, long start) throws IOException {
+        if (quarantine.contains(cacheKey, info.size, info.lastModified)) {
+            if (logRequests) {
+                logService.log(LogService.LOG_INFO, "Access denied to quarantined artifact: " + artifactFile);
+            }
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+
+        final long lastModified = info.lastModified;
+        final String etag = info.etag;
+        setCacheHeaders(resp, etag, lastModified, cacheControl);
+        if (isNotModified(req, etag, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        final long size = info.size;
+        resp.setHeader("Accept-Ranges", "bytes");
+        List<ByteRange> ranges = null;
+        final String rangeHeader = req.getHeader("Range");
+        if (rangeHeader != null && isRangeApplicable(req, etag, lastModified)) {
+            ranges = ByteRange.parse(rangeHeader, size);
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            resp.setHeader("Content-Range", "bytes */" + size);
+            resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return false;
+        }
+
+        // Index requests never wait for a download permit,
+        // so that clients keep on seeing repository changes while artifacts are downloaded.
+        if (downloadPermits != null && !downloadPermits.tryAcquire()) {
+            resp.setIntHeader("Retry-After", RETRY_AFTER);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return false;
+        }
+        boolean async = false;
+        try {
+            // Requests are not logged by default: metrics are recorded instead,
+            // without allocating log messages for every request.
+            if (logRequests) {
+                logService.log(LogService.LOG_INFO, "Access granted to artifact: " + artifactFile);
+            }
+            metrics.recordDownload(cacheKey);
+            final String contentType = info.contentType;
+            final FileChannel channel;
+            try {
+                channel = FileChannel.open(info.file, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // This artifact was removed, and the cache was not invalidated yet.
+                artifactCache.invalidate(cacheKey);
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return false;
+            }
+            try {
+                if (ranges == null) {
+                    resp.setContentType(contentType);
+                    resp.setContentLengthLong(size);
+                    async = transfer(req, resp, channel, 0, size, start);
+                } else if (ranges.size() == 1) {
+                    final ByteRange range = ranges.get(0);
+                    resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    resp.setContentType(contentType);
+                    resp.setHeader("Content-Range", range.toContentRange(size));
+                    resp.setContentLengthLong(range.length());
+                    async = transfer(req, resp, channel, range.start, range.length(), start);
+                } else {
+                    serveMultipleRanges(channel, ranges, size, contentType, resp);
+                }
+            } finally {
+                if (!async) {
+                    channel.close();
+                }
+            }
+        } finally {
+            if (!async && downloadPermits != null) {
+                downloadPermits.release();
+            }
+        }
+        return async;
+    }
+
+    /**
+     * Send artifact content.
+     * Large artifacts are sent asynchronously when the container allows it,
+     * so that slow downloads do not hold container threads.
+     *
+     * @param req          request
+     * @param resp         response, with headers set
+     * @param channel      artifact file channel
+     * @param position     first byte to send
+     * @param count        number of bytes to send
+     * @param requestStart time when request handling started (see {@link System#nanoTime()})
+     * @return <code>true</code> if content is being sent asynchronously: the file channel
+     * and the download permit are then released once the transfer is over
+     * @throws IOException if content could not be sent
+     */
+    private boolean transfer(HttpServletRequest req, HttpServletResponse resp, FileChannel channel,
+                             long position, long count, long requestStart) throws IOException {
+        if (asyncTransfer && count >= ASYNC_TRANSFER_MIN_SIZE && req.isAsyncSupported()) {
+            final int status = resp.getStatus();
+            AsyncArtifactTransfer.start(req.startAsync(), channel, position, count, zeroCopy, bytesSent -> {
+                if (downloadPermits != null) {
+                    downloadPermits.release();
+                }
+                metrics.recordBytesServed(bytesSent);
+                metrics.recordRequest(status, System.nanoTime() - requestStart);
+            });
+            return true;
+        }
+        ArtifactTransfer.transfer(channel, position, count, resp.getOutputStream(), zeroCopy);
+        metrics.recordBytesServed(count);
+        return false;
+    }
+
+    /**
+     * Get artifact metadata, from cache if available.
+     * Metadata filled from the repository index is checked against the file system
+     * the first time it is used: an artifact may have been changed while the repository
+     * was being indexed, in which case its change was reported before the index was committed.
+     *
+     * @param artifactFile artifact file
+     * @param cacheKey     artifact path, relative to the repository directory
+     * @return artifact metadata, or <code>null</code> if this artifact cannot be served
+     * @throws IOException if artifact metadata could not be read
+     */
+    private ArtifactCache.ArtifactInfo getArtifactInfo(Path artifactFile, String cacheKey) throws IOException {
+        ArtifactCache.ArtifactInfo info = artifactCache.get(cacheKey);
+        if (info == null || !info.verified) {
+            info = lookupArtifact(artifactFile, cacheKey);
+            if (info != null) {
+                artifactCache.put(cacheKey, info);
+            } else {
+                artifactCache.invalidate(cacheKey);
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Look up artifact metadata from the file system.
+     *
+     * @param artifactFile artifact file
+     * @param cacheKey     artifact path, relative to the repository directory
+     * @return artifact metadata, or <code>null</code> if this artifact cannot be served
+     * @throws IOException if artifact metadata could not be read
+     */
+    private ArtifactCache.ArtifactInfo lookupArtifact(Path artifactFile, String cacheKey) throws IOException {
+        final BasicFileAttributes attrs;
+        try {
+            if (!artifactFile.toRealPath().startsWith(repositoryDir)) {
+                return null;
+            }
+            attrs = Files.readAttributes(artifactFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        final IndexSnapshot index = this.index;
+        final RepositoryIndexer.Resource rsc = index == null ? null : index.resources.get(cacheKey);
+        if (rsc != null && rsc.fileSize == attrs.size() && rsc.lastModified == lastModified) {
+            // Artifact is unchanged since it was indexed: use its checksum as a strong validator.
+            return new ArtifactCache.ArtifactInfo(artifactFile, attrs.size(), lastModified,
+                    "\"" + rsc.checksum + "\"", rsc.type.mimeType, true);
+        }
+        return new ArtifactCache.ArtifactInfo(artifactFile, attrs.size(), lastModified,
+                "W/\"" + Long.toHexString(attrs.size()) + "-" + Long.toHexString(lastModified) + "\"",
+                "application/octet-stream", true);
+    }
+
+    private static String toCacheKey(Path relativePath) {
+        final String key = relativePath.toString();
+        return File.separatorChar == '/' ? key : key.replace(File.separatorChar, '/');
+    }
+
+    private void serveMultipleRanges(FileChannel channel, List<ByteRange> ranges, long size,
+                                     String contentType, HttpServletResponse resp) throws IOException {
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < partHeaders.length; ++i) {
+            final ByteRange range = ranges.get(i);
+            partHeaders[i] = ("\r\n--" + boundary
+                    + "\r\nContent-Type: " + contentType
+                    + "\r\nContent-Range: " + range.toContentRange(size)
+                    + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + range.length();
+        }
+        final byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += trailer.length;
+
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setContentType("multipart/byteranges; boundary=" + boundary);
+        resp.setContentLengthLong(contentLength);
+        final OutputStream out = resp.getOutputStream();
+        for (int i = 0; i < partHeaders.length; ++i) {
+            final ByteRange range = ranges.get(i);
+            out.write(partHeaders[i]);
+            ArtifactTransfer.transfer(channel, range.start, range.length(), out, zeroCopy);
+        }
+        out.write(trailer);
+        metrics.recordBytesServed(contentLength);
+    }
+
+    /**
+     * Serve repository index.
+     * The XML index is sent compressed if the client accepts it,
+     * while the compressed and binary copies are sent as files.
+     * When the XML index is requested with a <code>since</code> parameter
+     * (set to a previous index increment), only changes made since this increment are sent
+     * if these are available.
+     *
+     * @param req       request
+     * @param resp      response
+     * @param indexPath index file name (<code>obr.xml</code>, <code>obr.xml.gz</code> or <code>obr.idx</code>)
+     * @throws IOException if index could not be sent
+     */
+    private void serveIndex(HttpServletRequest req, HttpServletResponse resp,
+                            String indexPath) throws IOException {
+        final IndexSnapshot index = this.index;
+        if (index == null) {
+            logService.log(LogService.LOG_DEBUG, "Repository index is not available yet: " + repositoryDir);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        final byte[] content;
+        final String etag;
+        final String contentType;
+        String contentEncoding = null;
+        if ("obr.xml.gz".equals(indexPath)) {
+            content = index.compressedContent;
+            etag = index.compressedEtag;
+            contentType = "application/gzip";
+        } else if ("obr.idx".equals(indexPath)) {
+            if (index.binaryContent == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            content = index.binaryContent;
+            etag = index.binaryEtag;
+            contentType = "application/octet-stream";
+        } else {
+            final String since = req.getParameter("since");
+            if (since != null && serveIndexChanges(req, resp, index, since)) {
+                return;
+            }
+            resp.setHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(req.getHeader("Accept-Encoding"))) {
+                content = index.compressedContent;
+                etag = index.compressedEtag;
+                contentEncoding = "gzip";
+            } else {
+                content = index.content;
+                etag = index.etag;
+            }
+            contentType = "application/xml";
+        }
+        setCacheHeaders(resp, etag, index.lastModified, indexCacheControl);
+        if (isNotModified(req, etag, index.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType(contentType);
+        if (contentEncoding != null) {
+            resp.setHeader("Content-Encoding", contentEncoding);
+        }
+        resp.setContentLength(content.length);
+        resp.getOutputStream().write(content);
+        metrics.recordBytesServed(content.length);
+    }
+
+    /**
+     * Serve changes made to repository index since a previous increment.
+     *
+     * @param req   request
+     * @param resp  response
+     * @param index current index
+     * @param since previous increment, as set by the client
+     * @return <code>false</code> if changes are not available, and the whole index must be sent
+     * @throws IOException if changes could not be sent
+     */
+    private boolean serveIndexChanges(HttpServletRequest req, HttpServletResponse resp,
+                                      IndexSnapshot index, String since) throws IOException {
+        final long sinceIncrement;
+        try {
+            sinceIncrement = Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return true;
+        }
+        final byte[] delta = indexHistory.changesSince(sinceIncrement, index);
+        if (delta == null) {
+            logService.log(LogService.LOG_DEBUG,
+                    "Index changes are not available since increment " + since + ": " + repositoryDir);
+            return false;
+        }
+        // Changes only depend on current index for a given increment (which is part of the URL).
+        final String etag = index.etag.substring(0, index.etag.length() - 1) + "-delta\"";
+        setCacheHeaders(resp, etag, index.lastModified, indexCacheControl);
+        if (isNotModified(req, etag, index.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        resp.setContentType("application/xml");
+        resp.setContentLength(delta.length);
+        resp.getOutputStream().write(delta);
+        metrics.recordBytesServed(delta.length);
+        return true;
+    }
+
+    /**
+     * Look up resources by symbolic name (request parameter <code>name</code>)
+     * and version range (request parameter <code>version</code>, optional).
+     * Matching resources are sent using the index file format.
+     *
+     * @param req  request
+     * @param resp response
+     * @throws IOException if response could not be sent
+     */
+    private void serveLookup(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final IndexSnapshot index = this.index;
+        if (index == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        final String symbolicName = req.getParameter("name");
+        final String version = req.getParameter("version");
+        if (symbolicName == null || symbolicName.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final List<RepositoryIndexer.Resource> matches;
+        try {
+            matches = index.find(symbolicName, version == null || version.isEmpty() ? null : new VersionRange(version));
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        // Lookup results only depend on current index for a given query (which is part of the URL).
+        final String etag = index.etag.substring(0, index.etag.length() - 1) + "-lookup\"";
+        setCacheHeaders(resp, etag, index.lastModified, indexCacheControl);
+        if (isNotModified(req, etag, index.lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
+        final List<RepositoryIndexer.Resource> published =
+                contentAddressed ? ContentAddressing.publish(matches) : matches;
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024 + published.size() * 2048);
+        ObrWriter.write(buf, null, index.increment, published);
+        resp.setContentType("application/xml");
+        resp.setContentLength(buf.size());
+        buf.writeTo(resp.getOutputStream());
+        metrics.recordBytesServed(buf.size());
+    }
+
+    /**
+     * Notify a client when a new index is committed.
+     * Clients accepting <code>text/event-stream</code> content receive an event stream,
+     * where each event holds a new index increment. Other clients get the current index increment
+     * as plain text, as soon as it is different from the increment they know
+     * (request parameter <code>since</code>): this request is held until a new index is committed,
+     * or until a timeout (an empty response is then sent).
+     * Held requests are not recorded in request metrics.
+     *
+     * @param req  request
+     * @param resp response
+     * @return <code>true</code> if the response is being sent asynchronously
+     * @throws IOException if response could not be sent
+     */
+    private boolean serveIndexEvents(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (indexNotifier == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return false;
+        }
+        final boolean stream = acceptsEventStream(req.getHeader("Accept"));
+        String since = req.getHeader("Last-Event-ID");
+        if (since == null) {
+            since = req.getParameter("since");
+        }
+        long sinceIncrement = -1;
+        if (since != null) {
+            try {
+                sinceIncrement = Long.parseLong(since.trim());
+            } catch (NumberFormatException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return false;
+            }
+        }
+        final IndexSnapshot index = this.index;
+        final long increment = index == null ? -1 : index.increment;
+        resp.setHeader("Cache-Control", "no-cache");
+        if (stream) {
+            if (!req.isAsyncSupported()) {
+                resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+                return false;
+            }
+            resp.setContentType("text/event-stream");
+            resp.setCharacterEncoding("UTF-8");
+            indexNotifier.subscribe(req.startAsync(), sinceIncrement, increment, true);
+            return true;
+        }
+
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        if (increment != -1 && increment != sinceIncrement) {
+            final byte[] content = (increment + "\n").getBytes(StandardCharsets.US_ASCII);
+            resp.setContentLength(content.length);
+            resp.getOutputStream().write(content);
+            return false;
+        }
+        if (!req.isAsyncSupported()) {
+            resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return false;
+        }
+        indexNotifier.subscribe(req.startAsync(), sinceIncrement, increment, false);
+        return true;
+    }
+
+    /**
+     * Check if a client accepts an event stream.
+     *
+     * @param accept <code>Accept</code> header value (may be <code>null</code>)
+     * @return <code>true</code> if <code>text/event-stream</code> is acceptable
+     */
+    static boolean acceptsEventStream(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        for (final String mediaRange : accept.split(",")) {
+            if ("text/event-stream".equalsIgnoreCase(mediaRange.split(";")[0].trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a client accepts gzip content encoding.
+     *
+     * @param acceptEncoding <code>Accept-Encoding</code> header value (may be <code>null</code>)
+     * @return <code>true</code> if gzip is acceptable
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] params = coding.split(";");
+            final String name = params[0].trim();
+            float q = 1;
+            for (int i = 1; i < params.length; ++i) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                return q > 0;
+            }
+            if ("*".equals(name)) {
+                wildcard = q > 0;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * Evaluate <code>If-Range</code> header: a range request is only honoured
+     * if the client copy matches the current representation.
+     *
+     * @param req          request
+     * @param etag         current entity tag
+     * @param lastModified current modification time
+     * @return <code>true</code> if <code>Range</code> header must be evaluated
+     */
+    private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified) {
+        final String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return matchesEntityTag(ifRange, etag, true);
+        }
+        final long date;
+        try {
+            date = req.getDateHeader("If-Range");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    private static void setCacheHeaders(HttpServletResponse resp, String etag, long lastModified, String cacheControl) {
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", lastModified);
+        if (cacheControl != null && cacheControl.length() != 0) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+    }
+
+    /**
+     * Evaluate request preconditions, as defined in RFC 7232.
+     * <code>If-Modified-Since</code> is ignored when <code>If-None-Match</code> is set.
+     *
+     * @param req          request
+     * @param etag         current entity tag
+     * @param lastModified current modification time
+     * @return <code>true</code> if client copy is up-to-date
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEntityTag(ifNoneMatch, etag, false);
+        }
+        final long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // HTTP dates have a one second precision.
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
 
-        logService.log(LogService.LOG_INFO, "Access granted to artifact: " + artifactFile);
-        resp.setContentLengthLong(Files.size(artifactFile));
-        Files.copy(artifactFile, resp.getOutputStream());
+    /**
+     * Check if an entity tag matches a header value.
+     *
+     * @param header header value: <code>*</code> or a list of entity tags
+     * @param etag   current entity tag
+     * @param strong <code>true</code> to use strong comparison
+     * @return <code>true</code> if entity tag matches
+     */
+    static boolean matchesEntityTag(String header, String etag, boolean strong) {
+        if (!strong && "*".equals(header.trim())) {
+            return true;
+        }
+        if (strong && etag.startsWith("W/")) {
+            return false;
+        }
+        final String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                if (strong) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
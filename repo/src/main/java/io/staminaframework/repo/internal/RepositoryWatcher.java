@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * This component monitors repository directories.
+ * Every repository is monitored from a single thread, using a single {@link WatchService}.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = RepositoryWatcher.class)
+public class RepositoryWatcher {
+    /**
+     * Listener notified when a repository is changed.
+     *
+     * @author Stamina Framework developers
+     */
+    interface Listener {
+        /**
+         * Handle repository changes.
+         *
+         * @param changedPaths paths which were changed, or <code>null</code> if
+         *                     the whole repository must be scanned
+         */
+        void repositoryChanged(Set<Path> changedPaths);
+    }
+
+    @Reference
+    private LogService logService;
+    private WatchService watchService;
+    private Thread watcherThread;
+    private final Map<WatchKey, WatchedDir> watchedDirs = new ConcurrentHashMap<>(64);
+    private final Map<Path, Registration> registrations = new ConcurrentHashMap<>(16);
+
+    @Activate
+    void activate() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        watcherThread = new Thread(this::run, "Stamina Repository Watcher");
+        watcherThread.setPriority(Thread.MIN_PRIORITY);
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    @Deactivate
+    void deactivate() {
+        try {
+            watchService.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            watcherThread.join(1000 * 4);
+        } catch (InterruptedException ignore) {
+        }
+        watcherThread = null;
+        watchedDirs.clear();
+        registrations.clear();
+    }
+
+    /**
+     * Start monitoring a repository directory and its subdirectories.
+     *
+     * @param repositoryDir repository directory
+     * @param listener      listener notified when this repository is changed
+     */
+    void watch(Path repositoryDir, Listener listener) {
+        final Registration reg = new Registration(listener);
+        if (registrations.putIfAbsent(repositoryDir, reg) != null) {
+            throw new IllegalStateException("Repository directory is already monitored: " + repositoryDir);
+        }
+        logService.log(LogService.LOG_INFO, "Monitoring repository: " + repositoryDir);
+        register(repositoryDir, reg, null);
+    }
+
+    /**
+     * Stop monitoring a repository directory.
+     * Once this method returns, the listener is not notified anymore.
+     *
+     * @param repositoryDir repository directory
+     */
+    void unwatch(Path repositoryDir) {
+        final Registration reg = registrations.remove(repositoryDir);
+        if (reg == null) {
+            return;
+        }
+        synchronized (reg) {
+            reg.cancelled = true;
+        }
+        for (final Iterator<Map.Entry<WatchKey, WatchedDir>> i = watchedDirs.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<WatchKey, WatchedDir> e = i.next();
+            final Set<Registration> regs = e.getValue().registrations;
+            regs.remove(reg);
+            if (regs.isEmpty()) {
+                // This directory is not part of any other repository.
+                e.getKey().cancel();
+                i.remove();
+            }
+        }
+    }
+
+    private void run() {
+        boolean running = true;
+        while (running) {
+            try {
+                final WatchKey key = watchService.take();
+                final WatchedDir watchedDir = watchedDirs.get(key);
+                final Map<Registration, Set<Path>> changes = new HashMap<>(4);
+                final Set<Registration> fullScans = new HashSet<>(1);
+                for (final WatchEvent<?> e : key.pollEvents()) {
+                    if (watchedDir == null) {
+                        continue;
+                    }
+                    if (e.kind() == OVERFLOW) {
+                        // Some events were lost: the whole repository must be scanned.
+                        fullScans.addAll(watchedDir.registrations);
+                        continue;
+                    }
+                    final Path changedPath = watchedDir.dir.resolve((Path) e.context());
+                    for (final Registration reg : watchedDir.registrations) {
+                        final Set<Path> changedPaths = changes.computeIfAbsent(reg, r -> new HashSet<>(4));
+                        if (e.kind() == ENTRY_CREATE && Files.isDirectory(changedPath, LinkOption.NOFOLLOW_LINKS)) {
+                            // Files may have been added to this new directory before it was registered:
+                            // changes are reported for the whole directory.
+                            register(changedPath, reg, changedPaths);
+                        }
+                        changedPaths.add(changedPath);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirs.remove(key);
+                }
+                for (final Registration reg : fullScans) {
+                    reg.fireChanged(null);
+                    changes.remove(reg);
+                }
+                for (final Map.Entry<Registration, Set<Path>> e : changes.entrySet()) {
+                    e.getKey().fireChanged(e.getValue());
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                logService.log(LogService.LOG_ERROR, "Error while handling repository changes", e);
+            }
+        }
+    }
+
+    /**
+     * Register a directory and its subdirectories.
+     *
+     * @param dir          directory to register
+     * @param reg          repository registration
+     * @param changedPaths if not <code>null</code>, files found in registered directories are added to this set
+     */
+    private void register(Path dir, Registration reg, Set<Path> changedPaths) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                    if (reg.cancelled) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    // The same key is returned if this directory is already part of another repository.
+                    final WatchKey key = subDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchedDirs.computeIfAbsent(key, k -> new WatchedDir(subDir)).registrations.add(reg);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (changedPaths != null) {
+                        changedPaths.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (ClosedWatchServiceException ignore) {
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to monitor repository directory: " + dir, e);
+        }
+    }
+
+    private static final class WatchedDir {
+        final Path dir;
+        final Set<Registration> registrations = new CopyOnWriteArraySet<>();
+
+        WatchedDir(final Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private static final class Registration {
+        final Listener listener;
+        volatile boolean cancelled;
+
+        Registration(final Listener listener) {
+            this.listener = listener;
+        }
+
+        synchronized void fireChanged(Set<Path> changedPaths) {
+            if (!cancelled) {
+                listener.repositoryChanged(changedPaths);
+            }
+        }
+    }
+}
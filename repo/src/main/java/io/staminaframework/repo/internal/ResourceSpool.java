@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.repo.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sort indexed resources using a bounded amount of memory.
+ * Resources are buffered in memory up to a maximum count: buffered resources
+ * are then sorted and written to a temporary file (a run). Sorted resources are read back
+ * by merging runs. Runs are merged ahead of time when there are too many of them,
+ * so that the number of files read at the same time is bounded as well.
+ *
+ * @author Stamina Framework developers
+ */
+final class ResourceSpool implements Closeable {
+    /**
+     * Maximum number of runs read at the same time.
+     */
+    private static final int MAX_MERGED_RUNS = 64;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Path tmpDir;
+    private final Comparator<RepositoryIndexer.Resource> order;
+    private final int maxBufferedResources;
+    private final List<RepositoryIndexer.Resource> buffer;
+    private final List<Path> runs = new ArrayList<>(4);
+    private final List<RunReader> readers = new ArrayList<>(4);
+    private int size;
+
+    /**
+     * Create a spool.
+     *
+     * @param tmpDir               directory where temporary files are written
+     * @param order                resource order
+     * @param maxBufferedResources maximum number of resources kept in memory
+     */
+    ResourceSpool(final Path tmpDir, final Comparator<RepositoryIndexer.Resource> order,
+                  final int maxBufferedResources) {
+        this.tmpDir = tmpDir;
+        this.order = order;
+        this.maxBufferedResources = Math.max(1, maxBufferedResources);
+        this.buffer = new ArrayList<>(Math.min(this.maxBufferedResources, 1024));
+    }
+
+    void add(RepositoryIndexer.Resource rsc) throws IOException {
+        buffer.add(rsc);
+        ++size;
+        if (buffer.size() >= maxBufferedResources) {
+            spill();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Get spooled resources, sorted.
+     * Resources cannot be added anymore once this method is called.
+     * An {@link UncheckedIOException} is thrown by the returned iterator if a run could not be read.
+     *
+     * @return sorted resources
+     * @throws IOException if runs could not be read
+     */
+    Iterator<RepositoryIndexer.Resource> sorted() throws IOException {
+        if (runs.isEmpty()) {
+            // Every resource fits in memory: no need to write any file.
+            buffer.sort(order);
+            return buffer.iterator();
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        return merge(runs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final RunReader reader : readers) {
+            reader.in.close();
+        }
+        readers.clear();
+        for (final Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(order);
+        final Path run = Files.createTempFile(tmpDir, RepositoryIndexer.TEMP_FILE_PREFIX, ".run");
+        runs.add(run);
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+            for (final RepositoryIndexer.Resource rsc : buffer) {
+                writeResource(out, rsc);
+            }
+            out.writeBoolean(false);
+        }
+        buffer.clear();
+
+        if (runs.size() >= MAX_MERGED_RUNS) {
+            final Path mergedRun = Files.createTempFile(tmpDir, RepositoryIndexer.TEMP_FILE_PREFIX, ".run");
+            try (final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(mergedRun), BUFFER_SIZE))) {
+                for (final Iterator<RepositoryIndexer.Resource> i = merge(runs); i.hasNext(); ) {
+                    writeResource(out, i.next());
+                }
+                out.writeBoolean(false);
+            } catch (UncheckedIOException e) {
+                Files.deleteIfExists(mergedRun);
+                throw e.getCause();
+            }
+            close();
+            runs.add(mergedRun);
+        }
+    }
+
+    private Iterator<RepositoryIndexer.Resource> merge(List<Path> runFiles) throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(runFiles.size(), (r1, r2) -> {
+            final int c = order.compare(r1.next, r2.next);
+            return c != 0 ? c : Integer.compare(r1.index, r2.index);
+        });
+        for (int i = 0; i < runFiles.size(); ++i) {
+            final RunReader reader = new RunReader(i, new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(runFiles.get(i)), BUFFER_SIZE)));
+            readers.add(reader);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+        return new Iterator<RepositoryIndexer.Resource>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public RepositoryIndexer.Resource next() {
+                final RunReader reader = queue.poll();
+                if (reader == null) {
+                    throw new NoSuchElementException();
+                }
+                final RepositoryIndexer.Resource rsc = reader.next;
+                try {
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return rsc;
+            }
+        };
+    }
+
+    private static void writeResource(DataOutputStream out, RepositoryIndexer.Resource rsc) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(rsc.url);
+        out.writeLong(rsc.fileSize);
+        out.writeLong(rsc.lastModified);
+        IndexCache.writeResource(out, rsc);
+    }
+
+    private static final class RunReader {
+        final int index;
+        final DataInputStream in;
+        RepositoryIndexer.Resource next;
+
+        RunReader(final int index, final DataInputStream in) {
+            this.index = index;
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            // Each resource is preceded by a marker, and the run ends with a final marker.
+            if (!in.readBoolean()) {
+                in.close();
+                next = null;
+                return false;
+            }
+            final String url = in.readUTF();
+            final long size = in.readLong();
+            final long lastModified = in.readLong();
+            next = IndexCache.readResource(in, url, size, lastModified);
+            return true;
+        }
+    }
+}
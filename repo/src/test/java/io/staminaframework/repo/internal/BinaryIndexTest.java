@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.repo.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link BinaryIndex}.
+ *
+ * @author Stamina Framework developers
+ */
+public class BinaryIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final List<RepositoryIndexer.Resource> resources = newResources();
+        final Path file = tmp.getRoot().toPath().resolve("obr.idx");
+        BinaryIndex.write(file, 42, resources);
+
+        final BinaryIndex index = BinaryIndex.map(file);
+        assertEquals(42, index.increment());
+        assertEquals(42, BinaryIndex.readIncrement(file));
+        // Resources with an invalid version are not part of the index.
+        assertEquals(resources.size() - 1, index.size());
+        for (int i = 0; i < index.size(); ++i) {
+            final RepositoryIndexer.Resource rsc = resources.get(i);
+            assertEquals(rsc.url, index.url(i));
+            assertEquals(rsc.checksum, index.checksum(i));
+            assertEquals(rsc.fileSize, index.fileSize(i));
+        }
+    }
+
+    @Test
+    public void testBoundedWriter() throws IOException {
+        final List<RepositoryIndexer.Resource> resources = newResources();
+        final Path file = tmp.getRoot().toPath().resolve("obr.idx");
+        BinaryIndex.write(file, 42, resources);
+
+        // Strings are interned as long as these are kept in memory:
+        // a bounded writer spooling sections to temporary files writes the same content.
+        final Path boundedFile = tmp.getRoot().toPath().resolve("bounded.idx");
+        try (final BinaryIndex.Writer writer = new BinaryIndex.Writer(boundedFile, 42, Integer.MAX_VALUE, true)) {
+            for (final RepositoryIndexer.Resource rsc : resources) {
+                writer.add(rsc);
+            }
+            writer.finish();
+        }
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(boundedFile));
+
+        final Path smallFile = tmp.getRoot().toPath().resolve("small.idx");
+        try (final BinaryIndex.Writer writer = new BinaryIndex.Writer(smallFile, 42, 2, true)) {
+            for (final RepositoryIndexer.Resource rsc : resources) {
+                writer.add(rsc);
+            }
+            writer.finish();
+        }
+        final BinaryIndex index = BinaryIndex.map(file);
+        final BinaryIndex smallIndex = BinaryIndex.map(smallFile);
+        assertEquals(index.size(), smallIndex.size());
+        for (int i = 0; i < index.size(); ++i) {
+            assertEquals(index.url(i), smallIndex.url(i));
+            assertEquals(index.checksum(i), smallIndex.checksum(i));
+            assertEquals(index.fileSize(i), smallIndex.fileSize(i));
+        }
+        assertEquals(0, tmp.getRoot().list((dir, name) -> name.startsWith(RepositoryIndexer.TEMP_FILE_PREFIX)).length);
+    }
+
+    @Test
+    public void testEmptyIndex() throws IOException {
+        final Path file = tmp.getRoot().toPath().resolve("obr.idx");
+        BinaryIndex.write(file, 1, Collections.emptyList());
+        final BinaryIndex index = BinaryIndex.map(file);
+        assertEquals(1, index.increment());
+        assertEquals(0, index.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidIndex() throws IOException {
+        final Path file = tmp.getRoot().toPath().resolve("obr.idx");
+        Files.write(file, new byte[64]);
+        BinaryIndex.map(file);
+    }
+
+    @Test
+    public void testReadIncrement() throws IOException {
+        final Path file = tmp.getRoot().toPath().resolve("obr.idx");
+        assertEquals(-1, BinaryIndex.readIncrement(file));
+        Files.write(file, new byte[]{1, 2, 3});
+        assertEquals(-1, BinaryIndex.readIncrement(file));
+    }
+
+    private static List<RepositoryIndexer.Resource> newResources() {
+        final List<RepositoryIndexer.Resource> resources = new ArrayList<>(4);
+        resources.add(newResource("com.acme.a", "1.0.0", "a/com.acme.a-1.0.0.jar", 1234));
+        resources.add(newResource("com.acme.a", "1.2.0.SNAPSHOT", "a/com.acme.a-1.2.0.jar", 5678));
+        resources.add(newResource("com.acme.b", "2.0.0", "b/com.acme.b-2.0.0.jar", 100000));
+        resources.add(newResource("com.acme.c", "1.0.0", "c/com.acme.c-1.0.0.jar", 1L << 40));
+        final Capability capability = new Capability("osgi.wiring.package")
+                .attribute("osgi.wiring.package", "com.acme.a")
+                .attribute("version", "1.0.0", "Version")
+                .directive("uses", "com.acme.b");
+        resources.get(0).capabilities = Arrays.asList(capability);
+        resources.get(2).requirements = Arrays.asList(capability);
+        resources.add(newResource("com.acme.d", "not.a.version", "d/com.acme.d.jar", 10));
+        return resources;
+    }
+
+    private static RepositoryIndexer.Resource newResource(String symbolicName, String version,
+                                                          String url, long fileSize) {
+        final RepositoryIndexer.Resource rsc = new RepositoryIndexer.Resource();
+        rsc.symbolicName = symbolicName;
+        rsc.version = version;
+        rsc.url = url;
+        rsc.fileSize = fileSize;
+        rsc.type = RepositoryIndexer.Resource.Type.BUNDLE;
+        final StringBuilder checksum = new StringBuilder(64);
+        for (int i = 0; i < 32; ++i) {
+            checksum.append(String.format("%02x", (url.hashCode() + i) & 0xff));
+        }
+        rsc.checksum = checksum.toString();
+        return rsc;
+    }
+}
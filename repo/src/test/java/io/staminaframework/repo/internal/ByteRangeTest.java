@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.staminaframework.repo.internal;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ByteRange}.
+ *
+ * @author Stamina Framework developers
+ */
+public class ByteRangeTest {
+    @Test
+    public void testRange() {
+        assertRanges("bytes=0-99", 1000, "0-99");
+        assertRanges("bytes=100-", 1000, "100-999");
+        assertRanges("bytes=900-5000", 1000, "900-999");
+        assertRanges("bytes= 0-0 , 999-999", 1000, "0-0", "999-999");
+    }
+
+    @Test
+    public void testSuffixRange() {
+        assertRanges("bytes=-100", 1000, "900-999");
+        assertRanges("bytes=-5000", 1000, "0-999");
+    }
+
+    @Test
+    public void testCoalesce() {
+        assertRanges("bytes=500-599,0-99,50-149", 1000, "0-149", "500-599");
+        assertRanges("bytes=0-99,100-199", 1000, "0-199");
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRange.parse("items=0-99", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+        assertNull(ByteRange.parse("bytes=99-0", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=--5", 1000));
+        assertNull(ByteRange.parse("bytes=+1-2", 1000));
+        assertNull(ByteRange.parse("bytes=1-+2", 1000));
+        assertNull(ByteRange.parse("bytes=99999999999999999999-", 1000));
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        final StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 33; ++i) {
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertNull(ByteRange.parse(header.toString(), 1000));
+    }
+
+    @Test
+    public void testContentRange() {
+        assertEquals("bytes 0-99/1000", new ByteRange(0, 99).toContentRange(1000));
+        assertEquals(100, new ByteRange(0, 99).length());
+    }
+
+    private static void assertRanges(String header, long size, String... expected) {
+        final List<ByteRange> ranges = ByteRange.parse(header, size);
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; ++i) {
+            final ByteRange range = ranges.get(i);
+            assertEquals(expected[i], range.start + "-" + range.end);
+        }
+    }
+}